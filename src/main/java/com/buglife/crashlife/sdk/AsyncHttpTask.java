@@ -27,6 +27,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
@@ -34,14 +35,21 @@ import java.net.URL;
 import java.nio.charset.Charset;
 
 final class AsyncHttpTask extends AsyncTask<String, Void, Void> {
+    /**
+     * Writes a request body straight to the connection, so that it never has to be held in memory as a whole.
+     */
+    interface RequestBody {
+        void writeTo(@NonNull Writer writer) throws IOException;
+    }
+
     static final String BASE_URL = "https://buglife.com";
-    private final String mBody;
+    private final RequestBody mBody;
     private final Runnable mSuccess;
     private final Runnable mFailure;
     private final String mEndpoint;
 
 
-    AsyncHttpTask(String body, Runnable success, Runnable failure, String endpoint) {
+    AsyncHttpTask(RequestBody body, Runnable success, Runnable failure, String endpoint) {
         mBody = body;
         mSuccess = success;
         mFailure = failure;
@@ -54,7 +62,7 @@ final class AsyncHttpTask extends AsyncTask<String, Void, Void> {
         return null;
     }
 
-    private void post(String body) {
+    private void post(RequestBody body) {
         URL url;
         Handler mainThreadHandler = new Handler(Looper.getMainLooper());
         try {
@@ -88,9 +96,11 @@ final class AsyncHttpTask extends AsyncTask<String, Void, Void> {
         }
     }
 
-    private int post(HttpURLConnection openConnection, String body) throws AsyncHttpTask.NetworkException {
+    private int post(HttpURLConnection openConnection, RequestBody body) throws AsyncHttpTask.NetworkException {
         openConnection.addRequestProperty("Content-Type", "application/json");
         openConnection.setDoOutput(true);
+        // Otherwise the connection buffers the entire body to work out its Content-Length
+        openConnection.setChunkedStreamingMode(0);
 
         try {
             openConnection.setRequestMethod("POST");
@@ -112,7 +122,7 @@ final class AsyncHttpTask extends AsyncTask<String, Void, Void> {
         BufferedWriter bufferedWriter = new BufferedWriter(outputStreamWriter);
 
         try {
-            bufferedWriter.write(body);
+            body.writeTo(bufferedWriter);
             bufferedWriter.flush();
         } catch (IOException e) {
             e.printStackTrace();
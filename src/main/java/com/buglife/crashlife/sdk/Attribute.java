@@ -23,10 +23,12 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -165,6 +167,14 @@ final class Attribute implements Parcelable {
         return dict;
     }
 
+    /**
+     * Writes the fields of {@link #toCacheJson()} into an object the caller has already begun.
+     */
+    void writeCacheJsonFields(@NonNull JsonWriter writer) throws IOException {
+        JsonUtils.safeWrite(writer, VALUE, getValue());
+        JsonUtils.safeWrite(writer, FLAGS, getNameForFlag(getFlags()));
+    }
+
     @Nullable
     static Attribute fromCacheJson(JSONObject jsonObject) {
         String value;
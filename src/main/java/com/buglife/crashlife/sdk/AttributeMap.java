@@ -21,40 +21,56 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Represents a collection of custom attributes set by a user.
+ *
+ * Backed by a {@link PersistentHashMap}, so copying a map shares all of its entries instead of
+ * duplicating them. Every event takes a copy of the client's attributes, and events captured in
+ * a burst end up sharing almost all of their attribute memory.
  */
 final class AttributeMap implements Parcelable {
     private static final String KEY = "key";
-    private final HashMap<String, Attribute> mAttributes;
+    private static final int FIELD_ENTRY = 1;
+    private static final int FIELD_ENTRY_KEY = 1;
+    private static final int FIELD_ENTRY_VALUE = 2;
+    private static final int FIELD_ENTRY_VALUE_TYPE = 3;
+    private static final int FIELD_ENTRY_FLAGS = 4;
+    @NonNull private PersistentHashMap<String, Attribute> mAttributes;
 
     AttributeMap() {
-        mAttributes = new HashMap<>();
+        mAttributes = PersistentHashMap.empty();
     }
 
+    /**
+     * O(1); the copy shares the entries of the original until either is changed.
+     */
     AttributeMap(AttributeMap attributeMap) {
-        mAttributes = new HashMap<>(attributeMap.mAttributes);
+        mAttributes = attributeMap.mAttributes;
     }
 
     AttributeMap(Parcel source) {
-        mAttributes = new HashMap<>();
+        mAttributes = PersistentHashMap.empty();
 
         final int size = source.readInt();
 
         for (int i = 0; i < size; i++) {
             String key = source.readString();
             Attribute attr = source.readParcelable(Attribute.class.getClassLoader());
-            mAttributes.put(key, attr);
+            put(key, attr);
         }
     }
 
@@ -64,7 +80,7 @@ final class AttributeMap implements Parcelable {
         dest.writeInt(size);
 
         if (size > 0) {
-            for (Map.Entry<String, Attribute> entry : mAttributes.entrySet()) {
+            for (Map.Entry<String, Attribute> entry : mAttributes) {
                 dest.writeString(entry.getKey());
                 dest.writeParcelable(entry.getValue(), 0);
             }
@@ -89,12 +105,28 @@ final class AttributeMap implements Parcelable {
     };
 
 
+    /**
+     * Putting a null attribute removes the key.
+     */
     void put(@NonNull String key, @Nullable Attribute value) {
-        mAttributes.put(key, value);
+        mAttributes = value == null ? mAttributes.minus(key) : mAttributes.plus(key, value);
     }
 
     void putAll(@NonNull AttributeMap other) {
-        mAttributes.putAll(other.mAttributes);
+        if (mAttributes.size() == 0) {
+            mAttributes = other.mAttributes;
+            return;
+        }
+        for (Map.Entry<String, Attribute> entry : other.mAttributes) {
+            mAttributes = mAttributes.plus(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Visits every attribute without allocating, for paths that can't afford {@link #entrySet()}.
+     */
+    void forEach(@NonNull PersistentHashMap.Visitor<String, Attribute> visitor) {
+        mAttributes.forEach(visitor);
     }
 
     @Nullable Attribute get(@NonNull String key) {
@@ -102,18 +134,37 @@ final class AttributeMap implements Parcelable {
     }
 
     void clear() {
-        mAttributes.clear();
+        mAttributes = PersistentHashMap.empty();
+    }
+
+    int size() {
+        return mAttributes.size();
     }
 
+    /**
+     * @return A read-only view of the entries as they are now; later changes to the map don't show up in it
+     */
     Set<Map.Entry<String, Attribute>> entrySet() {
-        return mAttributes.entrySet();
+        final PersistentHashMap<String, Attribute> attributes = mAttributes;
+        return new AbstractSet<Map.Entry<String, Attribute>>() {
+            @Override
+            public Iterator<Map.Entry<String, Attribute>> iterator() {
+                return attributes.iterator();
+            }
+
+            @Override
+            public int size() {
+                return attributes.size();
+            }
+        };
     }
 
     @NonNull
     JSONArray toCacheJson() {
         JSONArray attributesJSON = new JSONArray();
-        for (String key : mAttributes.keySet()) {
-            Attribute attr = mAttributes.get(key);
+        for (Map.Entry<String, Attribute> entry : mAttributes) {
+            String key = entry.getKey();
+            Attribute attr = entry.getValue();
             if (attr != null) {
                 JSONObject attrDict = attr.toCacheJson();
                 JSONObject fullDict = new JSONObject();
@@ -130,6 +181,20 @@ final class AttributeMap implements Parcelable {
         return attributesJSON;
     }
 
+    void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (Map.Entry<String, Attribute> entry : mAttributes) {
+            Attribute attr = entry.getValue();
+            if (attr != null) {
+                writer.beginObject();
+                writer.name(KEY).value(entry.getKey());
+                attr.writeCacheJsonFields(writer);
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+    }
+
     @NonNull static AttributeMap fromCacheJson(JSONArray jsonArray) {
         AttributeMap attributes = new AttributeMap();
 
@@ -157,4 +222,69 @@ final class AttributeMap implements Parcelable {
         }
         return attributes;
     }
+
+    /**
+     * Encodes the map as a self-contained section with its own string table, so that it can be
+     * embedded in any binary cache record as is.
+     */
+    @NonNull
+    byte[] toCacheBinary() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCacheWriter writer = new BinaryCacheWriter(bytes);
+        for (Map.Entry<String, Attribute> entry : mAttributes) {
+            Attribute attr = entry.getValue();
+            if (attr == null) {
+                continue;
+            }
+            writer.beginObject(FIELD_ENTRY);
+            writer.writeString(FIELD_ENTRY_KEY, entry.getKey());
+            writer.writeString(FIELD_ENTRY_VALUE, attr.getValue());
+            writer.writeInt(FIELD_ENTRY_VALUE_TYPE, attr.getValueType().getValue());
+            writer.writeInt(FIELD_ENTRY_FLAGS, attr.getFlags());
+            writer.endObject();
+        }
+        writer.endObject();
+        return bytes.toByteArray();
+    }
+
+    @NonNull
+    static AttributeMap fromCacheBinary(@NonNull byte[] section) throws IOException {
+        AttributeMap attributes = new AttributeMap();
+        BinaryCacheReader reader = new BinaryCacheReader(new ByteArrayInputStream(section));
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            if (BinaryCacheReader.fieldNumber(tag) != FIELD_ENTRY) {
+                reader.skip(tag);
+                continue;
+            }
+            String key = null;
+            String value = null;
+            Attribute.ValueType valueType = Attribute.ValueType.STRING;
+            int flags = Attribute.FLAG_CUSTOM;
+            for (int entryTag = reader.nextTag(); entryTag != 0; entryTag = reader.nextTag()) {
+                switch (BinaryCacheReader.fieldNumber(entryTag)) {
+                    case FIELD_ENTRY_KEY:
+                        key = reader.readString();
+                        break;
+                    case FIELD_ENTRY_VALUE:
+                        value = reader.readString();
+                        break;
+                    case FIELD_ENTRY_VALUE_TYPE:
+                        Attribute.ValueType type = Attribute.ValueType.valueOf(reader.readInt());
+                        if (type != null) {
+                            valueType = type;
+                        }
+                        break;
+                    case FIELD_ENTRY_FLAGS:
+                        flags = reader.readInt();
+                        break;
+                    default:
+                        reader.skip(entryTag);
+                }
+            }
+            if (key != null && value != null) {
+                attributes.put(key, new Attribute(value, valueType, flags));
+            }
+        }
+        return attributes;
+    }
 }
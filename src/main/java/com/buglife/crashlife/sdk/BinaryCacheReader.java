@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Reads the format written by {@link BinaryCacheWriter}. Objects are read with a loop like:
+ *
+ *   for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+ *       switch (BinaryCacheReader.fieldNumber(tag)) {
+ *           case NAME: name = reader.readString(); break;
+ *           default: reader.skip(tag);
+ *       }
+ *   }
+ */
+final class BinaryCacheReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Anything bigger than this is corrupt, not a string or a section
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    @NonNull private final InputStream mInput;
+    @NonNull private final ArrayList<String> mStringTable = new ArrayList<>();
+
+    BinaryCacheReader(@NonNull InputStream input) {
+        mInput = input;
+    }
+
+    static int fieldNumber(int tag) {
+        return tag >>> BinaryCacheWriter.WIRE_TYPE_BITS;
+    }
+
+    private static int wireType(int tag) {
+        return tag & ((1 << BinaryCacheWriter.WIRE_TYPE_BITS) - 1);
+    }
+
+    /**
+     * @return The next tag, or 0 at the end of the current object
+     */
+    int nextTag() throws IOException {
+        return (int) readVarint();
+    }
+
+    int readInt() throws IOException {
+        return (int) readLong();
+    }
+
+    long readLong() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    boolean readBoolean() throws IOException {
+        return readLong() != 0;
+    }
+
+    @Nullable
+    String readString() throws IOException {
+        long reference = readVarint();
+        if (reference == 0) {
+            return null;
+        }
+        int index = (int) (reference >>> 1) - 1;
+        if ((reference & 1) == 0) {
+            if (index < 0 || index >= mStringTable.size()) {
+                throw new IOException("Bad string reference " + index);
+            }
+            return mStringTable.get(index);
+        }
+        if (index != mStringTable.size()) {
+            throw new IOException("Out of order string definition " + index);
+        }
+        String value = new String(readFully(readLength()), UTF_8);
+        mStringTable.add(value);
+        return value;
+    }
+
+    @NonNull
+    byte[] readBytes() throws IOException {
+        return readFully(readLength());
+    }
+
+    /**
+     * Skips a field this reader doesn't know about. String fields are still read, since later references depend on them.
+     */
+    void skip(int tag) throws IOException {
+        switch (wireType(tag)) {
+            case BinaryCacheWriter.WIRE_TYPE_VARINT:
+                readVarint();
+                break;
+            case BinaryCacheWriter.WIRE_TYPE_STRING:
+                readString();
+                break;
+            case BinaryCacheWriter.WIRE_TYPE_BYTES:
+                readFully(readLength());
+                break;
+            case BinaryCacheWriter.WIRE_TYPE_OBJECT:
+                for (int nested = nextTag(); nested != 0; nested = nextTag()) {
+                    skip(nested);
+                }
+                break;
+            default:
+                throw new IOException("Unknown wire type in tag " + tag);
+        }
+    }
+
+    long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mInput.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readLength() throws IOException {
+        long length = readVarint();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Bad length " + length);
+        }
+        return (int) length;
+    }
+
+    @NonNull
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = mInput.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+}
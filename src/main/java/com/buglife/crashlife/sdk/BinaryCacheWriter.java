@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Writes the binary cache format: a tagged sequence of fields, protobuf style.
+ *
+ * Each field starts with a varint tag holding the field number and a wire type:
+ *   VARINT - a zigzag-encoded varint
+ *   STRING - a varint reference into the string table, see below
+ *   BYTES  - a varint length followed by that many bytes
+ *   OBJECT - nested fields, ending with a zero tag
+ * Repeated fields are simply written more than once. Absent fields read as defaults, and readers
+ * skip fields they don't know, so fields can be added without bumping the format version.
+ *
+ * Strings are deduplicated through a table built up as the stream is written. A reference is
+ * ((index + 1) << 1) | isNew, and a new string is followed by its UTF-8 length and bytes, after
+ * which it takes the next index. Zero means null. Class and file names repeat across every
+ * thread in a dump, so most frames end up costing a few bytes.
+ */
+final class BinaryCacheWriter {
+    static final int FORMAT_VERSION = 1;
+
+    static final int WIRE_TYPE_VARINT = 0;
+    static final int WIRE_TYPE_STRING = 1;
+    static final int WIRE_TYPE_BYTES = 2;
+    static final int WIRE_TYPE_OBJECT = 3;
+    static final int WIRE_TYPE_BITS = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull private final OutputStream mOutput;
+    @NonNull private final HashMap<String, Integer> mStringTable = new HashMap<>();
+
+    BinaryCacheWriter(@NonNull OutputStream output) {
+        mOutput = output;
+    }
+
+    void writeInt(int fieldNumber, int value) throws IOException {
+        writeLong(fieldNumber, value);
+    }
+
+    void writeLong(int fieldNumber, long value) throws IOException {
+        writeTag(fieldNumber, WIRE_TYPE_VARINT);
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    void writeBoolean(int fieldNumber, boolean value) throws IOException {
+        writeTag(fieldNumber, WIRE_TYPE_VARINT);
+        writeVarint(value ? 2 : 0); // zigzag-encoded 1
+    }
+
+    /**
+     * Null strings are not written at all, and read back as null.
+     */
+    void writeString(int fieldNumber, @Nullable String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writeTag(fieldNumber, WIRE_TYPE_STRING);
+        Integer index = mStringTable.get(value);
+        if (index != null) {
+            writeVarint((long) (index + 1) << 1);
+            return;
+        }
+        index = mStringTable.size();
+        mStringTable.put(value, index);
+        writeVarint(((long) (index + 1) << 1) | 1);
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(bytes.length);
+        mOutput.write(bytes);
+    }
+
+    /**
+     * Writes a self-contained block, such as a section encoded by another writer with its own string table.
+     */
+    void writeBytes(int fieldNumber, @NonNull byte[] value) throws IOException {
+        writeTag(fieldNumber, WIRE_TYPE_BYTES);
+        writeVarint(value.length);
+        mOutput.write(value);
+    }
+
+    void beginObject(int fieldNumber) throws IOException {
+        writeTag(fieldNumber, WIRE_TYPE_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        writeVarint(0);
+    }
+
+    private void writeTag(int fieldNumber, int wireType) throws IOException {
+        writeVarint(((long) fieldNumber << WIRE_TYPE_BITS) | wireType);
+    }
+
+    void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOutput.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mOutput.write((int) value);
+    }
+}
@@ -21,14 +21,21 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ru.ivanarh.jndcrash.NDCrash;
 import ru.ivanarh.jndcrash.NDCrashError;
@@ -44,51 +51,135 @@ final class Client {
     private final String mApiKey;
     @NonNull
     private final ReportCache mReportCache;
+    // Attributes and the user identifier, replaced wholesale on every change
     @NonNull
-    private final AttributeMap mAttributes;
+    private final AtomicReference<ClientState> mState;
     @NonNull
-    private final SessionSnapshot mWorkingSessionSnapshot;
-    @NonNull
-    private final ArrayList<Footprint> mFootprints;
+    private final FootprintRecorder mFootprintRecorder;
     @NonNull
-    private final Handler mHandler;
+    private final SessionSnapshot mWorkingSessionSnapshot;
+    // Null if the arena couldn't be mapped, in which case attributes and footprints go through the persister
+    @Nullable
+    private final CrashContextArena mCrashContextArena;
     @NonNull
-    private final File mFootprintsFile;
+    private final FootprintJournal mFootprintJournal;
+    // Sequence number of the last footprint in the journal; only touched on the persistence thread
+    private long mJournaledFootprintSequence;
     @NonNull
     private final File mAttributesFile;
     @NonNull
     private final File mSessionSnapshotFile;
     @NonNull
-    private String mUserIdentifier;
+    private final CoalescingPersister mPersister;
+    // Builds, caches and submits non-fatal events off the calling thread
     @NonNull
-    private final Object mAttributesAndFootprintsLock;
+    private final EventPipeline mEventPipeline;
     @NonNull
-    private final Object mUserIdentifierLock;
-
-    Client(@NonNull Context context, @NonNull final String apiKey) {
-        mReportCache = new ReportCache(context);
-        CrashCatcher mCrashCatcher = new CrashCatcher(context, mReportCache);
+    private final ThreadDumper mThreadDumper;
+    @NonNull
+    private final StackFrameClassifier mStackFrameClassifier;
+    @NonNull
+    private final OutOfMemoryReporter mOutOfMemoryReporter;
+    // What a crash report carries besides the crash, encoded ahead of time on the persistence thread
+    @NonNull
+    private final PreparedCrashContext mPreparedCrashContext;
+    @NonNull
+    private final CoalescingPersister.Slot mAttributesSlot;
+    @NonNull
+    private final CoalescingPersister.Slot mFootprintsSlot;
+    @NonNull
+    private final CoalescingPersister.Slot mSessionSnapshotSlot;
+    // Attribute changes not yet written to the crash context arena. The thread that takes it from zero
+    // writes them, and goes on writing until no more came in meanwhile; the others don't wait for it.
+    @NonNull
+    private final AtomicInteger mPendingArenaAttributeChanges = new AtomicInteger();
+
+    private static final int MAX_CACHED_EVENTS_PER_POST = 20;
+    private static final long MAX_CACHED_BYTES_PER_POST = 1024 * 1024;
+    static final String PERSISTENCE_THREAD_NAME = "com.buglife.crashlife.persistence";
+    static final String EVENTS_THREAD_NAME = "com.buglife.crashlife.events";
+    static final String FOOTPRINTS_DROPPED_ATTRIBUTE = "footprints_dropped";
+    static final String EVENTS_DROPPED_ATTRIBUTE = "events_dropped";
+    static final String HANG_DURATION_ATTRIBUTE = "hang_duration_ms";
+    static final String HANG_RECOVERED_ATTRIBUTE = "hang_recovered";
+    static final String HANG_SAMPLES_ATTRIBUTE = "hang_samples";
+    static final String HANG_HOT_FRAMES_ATTRIBUTE = "hang_hot_frames";
+
+    Client(@NonNull Context context, @NonNull final String apiKey, @NonNull CrashlifeOptions options) {
+        mReportCache = new ReportCache(context, options);
+        CrashCatcher mCrashCatcher = new CrashCatcher(mReportCache, options.getCrashHandlerDeadlineMillis());
         Thread.setDefaultUncaughtExceptionHandler(mCrashCatcher);
 
         mContext = context;
         mApiKey = apiKey;
-        mAttributes = new AttributeMap();
+        mState = new AtomicReference<>(ClientState.initial());
         mWorkingSessionSnapshot = new SessionSnapshot(context, "");
-        mFootprints = new ArrayList<>();
-        mUserIdentifier = "";
-        mAttributesAndFootprintsLock = new Object();
-        mUserIdentifierLock = new Object();
         UUID fileName = UUID.randomUUID();
+        mReportCache.deleteStaleSessionFiles();
         NDCrashError error = NDCrash.initializeOutOfProcess(mContext, mReportCache.getNativeReportsPath() + "/" + fileName.toString() + ".txt", NDCrashUnwinder.libunwind, CrashService.class);
         if (error != ok) {
             Log.w("error initializing NDK Crash reporter" + error.toString());
         }
-        mFootprintsFile = new File(mReportCache.getNativeReportsPath(), fileName.toString() + ReportCache.FOOTPRINTS_FILE_SUFFIX);
+        CrashContextArena crashContextArena = null;
+        try {
+            crashContextArena = CrashContextArena.create(new File(mReportCache.getNativeReportsPath(), fileName.toString() + ReportCache.CONTEXT_ARENA_SUFFIX),
+                    options.getMaxFootprints(), options.getMaxFootprintBytes());
+        } catch (IOException e) {
+            Log.w("Unable to map Crashlife crash context; falling back to state files", e);
+        }
+        mCrashContextArena = crashContextArena;
+        mOutOfMemoryReporter = new OutOfMemoryReporter(context, new File(mReportCache.getNativeReportsPath()), fileName.toString());
+        mFootprintRecorder = new FootprintRecorder(options.getMaxFootprints(), options.getMaxFootprintBytes(), crashContextArena);
+        mFootprintJournal = new FootprintJournal(new File(mReportCache.getNativeReportsPath(), fileName.toString() + ReportCache.FOOTPRINTS_JOURNAL_SUFFIX));
         mAttributesFile = new File(mReportCache.getNativeReportsPath(), fileName.toString() + ReportCache.ATTRIBUTES_FILE_SUFFIX);
         mSessionSnapshotFile = new File(mReportCache.getNativeReportsPath(), fileName.toString() + ReportCache.SESSION_FILE_SUFFIX);
-        HandlerThread mPersisterThread = new HandlerThread("com.buglife.crashlife.persistence");
+        HandlerThread mPersisterThread = new HandlerThread(PERSISTENCE_THREAD_NAME);
         mPersisterThread.start();
-        mHandler = new Handler(mPersisterThread.getLooper());
+        Handler persisterHandler = new Handler(mPersisterThread.getLooper());
+        mPersister = new CoalescingPersister(persisterHandler,
+                options.getPersistenceDebounceMillis(), options.getPersistenceMaxLatencyMillis());
+        mPreparedCrashContext = new PreparedCrashContext(context, mState, persisterHandler);
+        mPreparedCrashContext.start();
+        mAttributesSlot = mPersister.newSlot("attributes", new CoalescingPersister.Writer() {
+            @Override
+            public void write() throws IOException {
+                writeAttributes();
+            }
+        });
+        mFootprintsSlot = mPersister.newSlot("footprints", new CoalescingPersister.Writer() {
+            @Override
+            public void write() throws IOException {
+                writeFootprints();
+            }
+        });
+        HandlerThread eventThread = new HandlerThread(EVENTS_THREAD_NAME);
+        eventThread.start();
+        final Handler eventHandler = new Handler(eventThread.getLooper());
+        Executor eventWorker = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                eventHandler.post(command);
+            }
+        };
+        mEventPipeline = new EventPipeline(eventWorker,
+                options.getEventQueueCapacity(), options.getEventOverflowPolicy(), options.getEventQueueBlockTimeoutMillis());
+        mThreadDumper = new ThreadDumper(options.getThreadDumpPolicy());
+        mStackFrameClassifier = StackFrameClassifier.create(context.getPackageName(), options.getInAppPackages());
+        mSessionSnapshotSlot = mPersister.newSlot("session", new CoalescingPersister.Writer() {
+            @Override
+            public void write() throws IOException {
+                writeSessionSnapshot();
+            }
+        });
+        Looper mainLooper = Looper.getMainLooper();
+        if (options.getHangThresholdMillis() > 0 && mainLooper != null) {
+            new HangWatchdog(mainLooper, options.getHangThresholdMillis(), options.getHangSampleIntervalMillis(), new HangWatchdog.Listener() {
+                @Override
+                public void onHang(@NonNull HangWatchdog.Hang hang) {
+                    reportHang(hang);
+                }
+            }).start();
+        }
 
         final Handler handler = new Handler();
         handler.postDelayed(new Runnable() {
@@ -101,14 +192,23 @@ final class Client {
     }
 
     void postCachedEvents() {
-        final List<Event> cachedEvents = mReportCache.getCachedEvents();
-        final List<Event> cachedNativeEvents = mReportCache.getCachedNativeEvents();
-        List<Event> allEvents = new ArrayList<>(cachedEvents);
-        allEvents.addAll(cachedNativeEvents);
+        postCachedEvents(mReportCache.openCursor());
+    }
+
+    /**
+     * Posts the cache one page at a time, moving on to the next page only once the previous one has been
+     * sent and deleted, so a large backlog is never in memory all at once.
+     */
+    private void postCachedEvents(@NonNull final ReportCursor cursor) {
+        final ReportCursor.Page page = cursor.nextPage(MAX_CACHED_EVENTS_PER_POST, MAX_CACHED_BYTES_PER_POST);
+        if (page.isEmpty()) {
+            return;
+        }
         Runnable deletionRunnable = new Runnable() {
             @Override
             public void run() {
-                mReportCache.deleteCachedReports(cachedEvents, cachedNativeEvents);
+                mReportCache.deleteCachedReports(page.getEntries());
+                postCachedEvents(cursor);
             }
         };
         Runnable failure = new Runnable() {
@@ -117,20 +217,20 @@ final class Client {
                 Log.e("Posting cached events failed, will try again on next launch");
             }
         };
-        if (allEvents.size() > 0) {
-            Submitter submitter = new Submitter();
-            submitter.submitEvents(mApiKey, mWorkingSessionSnapshot, allEvents, deletionRunnable, failure);
-        }
+        Submitter submitter = new Submitter();
+        submitter.submitEvents(mApiKey, mWorkingSessionSnapshot, page.getEvents(), deletionRunnable, failure);
     }
 
-    private void postEvent(@NonNull Event event) {
+    private void postEvent(@NonNull Event event, @Nullable final ReportManifest.Entry cacheEntry) {
         Submitter submitter = new Submitter();
         final ArrayList<Event> events = new ArrayList<>();
         events.add(event);
         Runnable success = new Runnable() {
             @Override
             public void run() {
-                mReportCache.deleteCachedReports(events, events); // Ugly. Should probably unify this with a "native" flag
+                if (cacheEntry != null) {
+                    mReportCache.deleteCachedReports(Collections.singletonList(cacheEntry));
+                }
             }
         };
         Runnable failure = new Runnable() {
@@ -143,20 +243,32 @@ final class Client {
 
     }
 
-    void deleteCachedEvents(List<Event> mEvents, List<Event> mNativeEvents) {
-        mReportCache.deleteCachedReports(mEvents, mNativeEvents);
-    }
     void deleteAllCachedEvents() {
         mReportCache.deleteAllCachedReports();
     }
 
-    void logException(Throwable exception) {
-        Event event;
-        synchronized (mAttributesAndFootprintsLock) {
-            event = new Event(exception, new AttributeMap(mAttributes), new ArrayList<>(mFootprints));
-        }
-        mReportCache.cacheEvent(event);
-        postEvent(event);
+    /**
+     * Only takes note of the exception, the logging thread's stack and the current state here; the
+     * event is built, cached and submitted by the event pipeline.
+     */
+    void logException(final Throwable exception) {
+        final Thread loggingThread = Thread.currentThread();
+        final StackTraceElement[] loggingThreadStack = mThreadDumper.captureCallingThread();
+        final ClientState state = mState.get();
+        final long footprintSequence = mFootprintRecorder.getLastSequence();
+        final long loggedAt = System.currentTimeMillis();
+        mEventPipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                FootprintRecorder.Capture footprints = mFootprintRecorder.capture(footprintSequence);
+                Map<Thread, StackTraceElement[]> threadStackTraces = mThreadDumper.dump(loggingThread, loggingThreadStack);
+                Event event = new Event(exception, threadStackTraces, eventAttributes(state, footprints), footprints.getFootprints());
+                event.setTimestamp(new Date(loggedAt));
+                ReportManifest.Entry entry = mReportCache.cacheEvent(event);
+                postEvent(event, entry);
+                mPreparedCrashContext.sampleEnvironmentIfStale();
+            }
+        });
     }
 
     void logError(String message) {
@@ -171,57 +283,120 @@ final class Client {
         log(Event.Severity.INFO, message);
     }
 
-    void log(Event.Severity severity, String message) {
-        Event event;
-        synchronized (mAttributesAndFootprintsLock) {
-            event = new Event(severity, message, new AttributeMap(mAttributes), new ArrayList<>(mFootprints));
-        }
-        mReportCache.cacheEvent(event);
-        postEvent(event);
-    }
-
-    void setUserIdentifier(@NonNull String userIdentifier) {
-        synchronized (mUserIdentifierLock) {
-            mUserIdentifier = userIdentifier;
-        }
-        final SessionSnapshot snapshot = new SessionSnapshot(mContext, userIdentifier);
-        mHandler.post(new Runnable() {
+    void log(final Event.Severity severity, final String message) {
+        final ClientState state = mState.get();
+        final long footprintSequence = mFootprintRecorder.getLastSequence();
+        final long loggedAt = System.currentTimeMillis();
+        mEventPipeline.submit(new Runnable() {
             @Override
             public void run() {
-                try {
-                    IOUtils.writeStringToFile(snapshot.toCacheJson().toString(), mSessionSnapshotFile);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                FootprintRecorder.Capture footprints = mFootprintRecorder.capture(footprintSequence);
+                Event event = new Event(severity, message, eventAttributes(state, footprints), footprints.getFootprints());
+                event.setTimestamp(new Date(loggedAt));
+                ReportManifest.Entry entry = mReportCache.cacheEvent(event);
+                postEvent(event, entry);
+                mPreparedCrashContext.sampleEnvironmentIfStale();
             }
         });
     }
 
-    void putAttribute(String attributeName, String attributeValue) {
-        final AttributeMap attributes;
-        synchronized (mAttributesAndFootprintsLock) {
-            _putAttribute_unsafe(attributeName, attributeValue);
-            attributes = new AttributeMap(mAttributes);
-        }
-        mHandler.post(new Runnable() {
+    /**
+     * Reports a hang of the main thread as an error, with the main thread's stack as it was most often
+     * while hung, and the frames it was most often in.
+     */
+    private void reportHang(@NonNull final HangWatchdog.Hang hang) {
+        final Thread mainThread = Looper.getMainLooper().getThread();
+        final ClientState state = mState.get();
+        final long footprintSequence = mFootprintRecorder.getLastSequence();
+        final long hungSince = System.currentTimeMillis() - hang.getDurationMillis();
+        mEventPipeline.submit(new Runnable() {
             @Override
             public void run() {
-                try {
-                    IOUtils.writeStringToFile(attributes.toCacheJson().toString(), mAttributesFile);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                FootprintRecorder.Capture footprints = mFootprintRecorder.capture(footprintSequence);
+                AttributeMap attributes = eventAttributes(state, footprints);
+                attributes.put(HANG_DURATION_ATTRIBUTE, new Attribute(Long.toString(hang.getDurationMillis()), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
+                attributes.put(HANG_RECOVERED_ATTRIBUTE, new Attribute(Boolean.toString(hang.isRecovered()), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
+                attributes.put(HANG_SAMPLES_ATTRIBUTE, new Attribute(Integer.toString(hang.getSampleCount()), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
+                StringBuilder hotFrames = new StringBuilder();
+                for (Map.Entry<StackTraceElement, Integer> hotFrame : hang.getHotFrames()) {
+                    hotFrames.append(hotFrame.getValue()).append('/').append(hang.getSampleCount()).append(' ').append(hotFrame.getKey()).append('\n');
                 }
+                attributes.put(HANG_HOT_FRAMES_ATTRIBUTE, new Attribute(hotFrames.toString(), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
+                List<ThreadData> threads = Collections.singletonList(new ThreadData(mainThread, new StackPool().intern(hang.getHottestStack())));
+                String message = "Main thread hung for " + hang.getDurationMillis() + "ms" + (hang.isRecovered() ? "" : " and counting");
+                Event event = Event.error(message, threads, attributes, footprints.getFootprints());
+                event.setTimestamp(new Date(hungSince));
+                ReportManifest.Entry entry = mReportCache.cacheEvent(event);
+                postEvent(event, entry);
+                mPreparedCrashContext.sampleEnvironmentIfStale();
             }
         });
     }
-    private void _putAttribute_unsafe(String attributeName, String attributeValue) {
-        if (attributeValue == null) {
-            mAttributes.put(attributeName, null);
+
+    private AttributeMap eventAttributes(@NonNull ClientState state, @NonNull FootprintRecorder.Capture footprints) {
+        AttributeMap attributes = state.getAttributes();
+        putDroppedFootprintCount(attributes, footprints.getDroppedCount());
+        long droppedEventCount = getDroppedEventCount();
+        if (droppedEventCount > 0) {
+            attributes.put(EVENTS_DROPPED_ATTRIBUTE, new Attribute(Long.toString(droppedEventCount), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
         }
-        mAttributes.put(attributeName, new Attribute(attributeValue, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM));
+        return attributes;
+    }
 
+    static void putDroppedFootprintCount(AttributeMap attributes, long droppedCount) {
+        if (droppedCount > 0) {
+            attributes.put(FOOTPRINTS_DROPPED_ATTRIBUTE, new Attribute(Long.toString(droppedCount), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
+        }
+    }
+
+    void setUserIdentifier(@NonNull String userIdentifier) {
+        ClientState current;
+        do {
+            current = mState.get();
+        } while (!mState.compareAndSet(current, current.withUserIdentifier(userIdentifier)));
+        mPreparedCrashContext.onStateChanged();
+        mPersister.markDirty(mSessionSnapshotSlot);
     }
 
+    private void writeSessionSnapshot() throws IOException {
+        SessionSnapshot snapshot = new SessionSnapshot(mContext, getUserIdentifier());
+        IOUtils.writeStringToFile(snapshot.toCacheJson().toString(), mSessionSnapshotFile);
+    }
+
+    void putAttribute(String attributeName, String attributeValue) {
+        Attribute attribute = new Attribute(attributeValue, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM);
+        ClientState current;
+        do {
+            current = mState.get();
+        } while (!mState.compareAndSet(current, current.withAttribute(attributeName, attribute)));
+        mPreparedCrashContext.onStateChanged();
+        if (mCrashContextArena != null) {
+            writeArenaAttributes(mCrashContextArena);
+        } else {
+            mPersister.markDirty(mAttributesSlot);
+        }
+    }
+
+    /**
+     * Writes the attributes into the arena's mapping on the calling thread, so that they're current at
+     * crash time, unless another thread is writing them already and will pick up this change too.
+     */
+    private void writeArenaAttributes(@NonNull CrashContextArena arena) {
+        if (mPendingArenaAttributeChanges.getAndIncrement() != 0) {
+            return;
+        }
+        int changes = 1;
+        do {
+            // Read after the changes being accounted for were published, since each is counted only once it is
+            arena.writeAttributes(mState.get().getAttributes());
+            changes = mPendingArenaAttributeChanges.addAndGet(-changes);
+        } while (changes != 0);
+    }
+
+    private void writeAttributes() throws IOException {
+        AttributeMap attributes = mState.get().getAttributes();
+        IOUtils.writeStringToFile(attributes.toCacheJson().toString(), mAttributesFile);
+    }
 
     void leaveFootprint(String name, Map<String, String> metadata) {
         _leaveFootprint(name, metadata);
@@ -233,33 +408,98 @@ final class Client {
             map.put(key, attr);
         }
         Footprint toAdd = new Footprint(name, map);
-        final List<Footprint> footprints;
-        synchronized (mAttributesAndFootprintsLock) {
-            leaveFootprint_unsafe(toAdd);
-            footprints = new ArrayList<>(mFootprints);
+        mFootprintRecorder.record(toAdd);
+        onFootprintRecorded();
+    }
+
+    // The overloads below go straight into the recorder's preallocated slots, without building a Footprint
+
+    void leaveFootprint(String name) {
+        mFootprintRecorder.record(name);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key, String value) {
+        mFootprintRecorder.record(name, key, value);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key, long value) {
+        mFootprintRecorder.record(name, key, value);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key, double value) {
+        mFootprintRecorder.record(name, key, value);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key, boolean value) {
+        mFootprintRecorder.record(name, key, value);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key1, String value1, String key2, String value2) {
+        mFootprintRecorder.record(name, key1, value1, key2, value2);
+        onFootprintRecorded();
+    }
+
+    void leaveFootprint(String name, String key1, String value1, String key2, String value2, String key3, String value3) {
+        mFootprintRecorder.record(name, key1, value1, key2, value2, key3, value3);
+        onFootprintRecorded();
+    }
+
+    private void onFootprintRecorded() {
+        // The recorder already mirrored it into the arena, if there is one
+        if (mCrashContextArena == null) {
+            mPersister.markDirty(mFootprintsSlot);
         }
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    IOUtils.writeStringToFile(JsonUtils.listToCacheJson(footprints).toString(), mFootprintsFile);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
+    }
 
+    private void writeFootprints() throws IOException {
+        FootprintRecorder.Capture capture = mFootprintRecorder.capture();
+        mFootprintJournal.write(capture.getFootprints(), capture.getFootprintsAfter(mJournaledFootprintSequence));
+        mJournaledFootprintSequence = capture.getLastSequence();
+    }
+
+    /**
+     * Synchronously writes any session state that hasn't been persisted yet. For use on crash paths.
+     */
+    void flushPersistedState() {
+        mPersister.flush();
+    }
+
+    /**
+     * Synchronously builds and caches any logged events still waiting in the event pipeline. For use on crash paths.
+     */
+    void flushPendingEvents() {
+        mEventPipeline.flush();
+    }
+
+    CoalescingPersister getPersister() {
+        return mPersister;
+    }
+
+    /**
+     * @return The current attributes and user identifier, both as of the same moment. Never blocks.
+     */
+    @NonNull
+    ClientState getState() {
+        return mState.get();
     }
 
-    private void leaveFootprint_unsafe(Footprint footprint) {
-        mFootprints.add(footprint);
+    /**
+     * @return The footprints left so far, merged across threads
+     */
+    @NonNull
+    FootprintRecorder.Capture captureFootprints() {
+        return mFootprintRecorder.capture();
     }
 
     // This is for use by the crash service. You're probably doing it wrong if you're using it otherwise.
+    // Returns a copy, which costs nothing until one of the two is changed.
     AttributeMap getAttributes() {
-        synchronized (mAttributesAndFootprintsLock) {
-            return mAttributes;
-        }
+        return mState.get().getAttributes();
     }
 
     String getAPIKey() {
@@ -268,10 +508,19 @@ final class Client {
 
     Context getContext() { return mContext; }
 
-    List<Footprint> getFootprints() {
-        synchronized (mAttributesAndFootprintsLock) {
-            return mFootprints;
-        }
+    @NonNull
+    StackFrameClassifier getStackFrameClassifier() {
+        return mStackFrameClassifier;
+    }
+
+    @NonNull
+    OutOfMemoryReporter getOutOfMemoryReporter() {
+        return mOutOfMemoryReporter;
+    }
+
+    @NonNull
+    PreparedCrashContext getPreparedCrashContext() {
+        return mPreparedCrashContext;
     }
 
     SessionSnapshot getWorkingSessionSnapshot() {
@@ -279,15 +528,19 @@ final class Client {
     }
 
     int getCachedEventCount() {
-        final List<Event> cachedEvents = mReportCache.getCachedEvents();
-        final List<Event> cachedNativeEvents = mReportCache.getCachedNativeEvents();
-        return cachedEvents.size() + cachedNativeEvents.size();
+        return mReportCache.getCachedReportCount();
+    }
+
+    /**
+     * @return How many events have been dropped: evicted from the cache to stay within its limits,
+     * or never captured because the event pipeline was full
+     */
+    long getDroppedEventCount() {
+        return mReportCache.getDroppedReportCount() + mEventPipeline.getDroppedCount();
     }
 
     String getUserIdentifier() {
-        synchronized (mUserIdentifierLock) {
-            return mUserIdentifier;
-        }
+        return mState.get().getUserIdentifier();
     }
 
     static String getProcessName(Context context) {
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * An immutable snapshot of the state a {@link Client} attaches to events: attributes and the user
+ * identifier. The client publishes a new one for every change, so whoever reads the current
+ * snapshot sees all of it as of a single moment, without taking a lock. Footprints are kept apart,
+ * by a {@link FootprintRecorder}, since they change far more often.
+ *
+ * Updates share everything they don't change with the previous snapshot, so they cost about as
+ * much as the change itself.
+ */
+final class ClientState {
+    // Never changed once the snapshot is published; handed out as copies
+    @NonNull private final AttributeMap mAttributes;
+    @NonNull private final String mUserIdentifier;
+
+    private ClientState(@NonNull AttributeMap attributes, @NonNull String userIdentifier) {
+        mAttributes = attributes;
+        mUserIdentifier = userIdentifier;
+    }
+
+    @NonNull
+    static ClientState initial() {
+        return new ClientState(new AttributeMap(), "");
+    }
+
+    /**
+     * @param attribute The new value, or null to remove the attribute
+     */
+    @NonNull
+    ClientState withAttribute(@NonNull String key, @Nullable Attribute attribute) {
+        AttributeMap attributes = new AttributeMap(mAttributes);
+        attributes.put(key, attribute);
+        return new ClientState(attributes, mUserIdentifier);
+    }
+
+    @NonNull
+    ClientState withUserIdentifier(@NonNull String userIdentifier) {
+        return new ClientState(mAttributes, userIdentifier);
+    }
+
+    /**
+     * @return A copy of the attributes, which costs nothing until it's changed
+     */
+    @NonNull
+    AttributeMap getAttributes() {
+        return new AttributeMap(mAttributes);
+    }
+
+    @NonNull
+    String getUserIdentifier() {
+        return mUserIdentifier;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes session state files in the background, collapsing bursts of changes into a single write.
+ *
+ * Each state file is registered as a {@link Slot} with a writer that persists the latest state.
+ * Marking a slot dirty schedules a write after a short debounce; further changes push the write
+ * back, but never past the max latency measured from the first unwritten change.
+ */
+final class CoalescingPersister {
+    interface Writer {
+        /**
+         * Persists the latest state. Called on the persistence thread, or on the caller of {@link #flush()}.
+         */
+        void write() throws IOException;
+    }
+
+    static final class Slot {
+        @NonNull private final String mName;
+        @NonNull private final Writer mWriter;
+        private boolean mDirty;
+
+        private Slot(@NonNull String name, @NonNull Writer writer) {
+            mName = name;
+            mWriter = writer;
+        }
+    }
+
+    @NonNull private final Handler mHandler;
+    private final long mDebounceMillis;
+    private final long mMaxLatencyMillis;
+    @NonNull private final List<Slot> mSlots = new ArrayList<>();
+    @NonNull private final Object mLock = new Object();
+    // Held while writing, so a flush from a crashing thread doesn't interleave with the persistence thread
+    @NonNull private final Object mWriteLock = new Object();
+    private long mFirstDirtyAt = -1;
+    private long mMutationCount;
+    private long mWriteCount;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeDirtySlots();
+        }
+    };
+
+    CoalescingPersister(@NonNull Handler handler, long debounceMillis, long maxLatencyMillis) {
+        mHandler = handler;
+        mDebounceMillis = debounceMillis;
+        mMaxLatencyMillis = maxLatencyMillis;
+    }
+
+    @NonNull
+    Slot newSlot(@NonNull String name, @NonNull Writer writer) {
+        Slot slot = new Slot(name, writer);
+        synchronized (mLock) {
+            mSlots.add(slot);
+        }
+        return slot;
+    }
+
+    void markDirty(@NonNull Slot slot) {
+        synchronized (mLock) {
+            slot.mDirty = true;
+            mMutationCount++;
+            long now = SystemClock.uptimeMillis();
+            if (mFirstDirtyAt < 0) {
+                mFirstDirtyAt = now;
+            }
+            long writeAt = Math.min(now + mDebounceMillis, mFirstDirtyAt + mMaxLatencyMillis);
+            mHandler.removeCallbacks(mWriteRunnable);
+            mHandler.postAtTime(mWriteRunnable, writeAt);
+        }
+    }
+
+    /**
+     * Synchronously writes every dirty slot on the calling thread. Meant for crash paths,
+     * where the persistence thread may never get another chance to run.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mWriteRunnable);
+        writeDirtySlots();
+    }
+
+    private void writeDirtySlots() {
+        synchronized (mWriteLock) {
+            List<Slot> dirtySlots = new ArrayList<>();
+            synchronized (mLock) {
+                mFirstDirtyAt = -1;
+                for (Slot slot : mSlots) {
+                    if (slot.mDirty) {
+                        slot.mDirty = false;
+                        dirtySlots.add(slot);
+                    }
+                }
+            }
+            for (Slot slot : dirtySlots) {
+                try {
+                    slot.mWriter.write();
+                } catch (IOException e) {
+                    Log.w("Unable to persist Crashlife " + slot.mName, e);
+                }
+                synchronized (mLock) {
+                    mWriteCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return How many changes have been marked dirty
+     */
+    long getMutationCount() {
+        synchronized (mLock) {
+            return mMutationCount;
+        }
+    }
+
+    /**
+     * @return How many writes have actually been performed
+     */
+    long getWriteCount() {
+        synchronized (mLock) {
+            return mWriteCount;
+        }
+    }
+
+    /**
+     * @return How many writes were avoided by coalescing changes
+     */
+    long getWritesSaved() {
+        synchronized (mLock) {
+            return Math.max(0, mMutationCount - mWriteCount);
+        }
+    }
+}
@@ -18,44 +18,162 @@
 package com.buglife.crashlife.sdk;
 
 
-import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reports uncaught exceptions, then passes them on to the handler that was there before.
+ *
+ * The report is built in stages on a thread of its own, while the crashing thread waits for it
+ * no longer than the deadline. A minimal report, without the other threads' stacks or any
+ * environment that isn't already at hand, is cached first; an enriched one then replaces it.
+ * Whatever stalls, be it a system query, a thread dump or the disk, the exception is passed on
+ * in time, and the report that was cached last stands.
+ */
 final class CrashCatcher implements Thread.UncaughtExceptionHandler {
-    private final Context mContext;
+    static final String STAGE_THREAD_NAME = "com.buglife.crashlife.crash";
+    static final String MINIMAL_STAGE_MILLIS_ATTRIBUTE = "crash_handler_minimal_stage_ms";
+    static final String ENRICHED_STAGE_MILLIS_ATTRIBUTE = "crash_handler_enriched_stage_ms";
+
     private final ReportCache mReportCache;
+    private final long mDeadlineMillis;
     private final Thread.UncaughtExceptionHandler mPreviousUncaughtExceptionHandler;
 
-    CrashCatcher(@NonNull Context context, @NonNull ReportCache reportCache) {
-        mContext = context;
+    CrashCatcher(@NonNull ReportCache reportCache, long deadlineMillis) {
         mReportCache = reportCache;
+        mDeadlineMillis = deadlineMillis;
         mPreviousUncaughtExceptionHandler = Thread.getDefaultUncaughtExceptionHandler();
     }
 
     @Override
-    public void uncaughtException(Thread thread, Throwable throwable) {
-        Log.e("Unhandled exception:" + throwable.getMessage() + "\n stack trace:\n" + Arrays.toString(thread.getStackTrace()));
-        Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
+    public void uncaughtException(final Thread thread, final Throwable throwable) {
+        // Whatever happens while reporting, the crash is passed on
+        try {
+            report(thread, throwable);
+        } catch (Throwable e) {
+            Log.e("Unable to report crash", e);
+        } finally {
+            if (mPreviousUncaughtExceptionHandler != null) {
+                mPreviousUncaughtExceptionHandler.uncaughtException(thread, throwable);
+            }
+            else {
+                System.exit(1);
+            }
+        }
+    }
 
-        AttributeMap attributeMap = Crashlife.getClient().getAttributes();
-        DeviceSnapshot deviceSnapshot = new DeviceSnapshot(mContext);
-        EnvironmentSnapshot environmentSnapshot = new EnvironmentSnapshot(mContext);
-        SessionSnapshot sessionSnapshot = new SessionSnapshot(mContext, Crashlife.getUserIdentifier());
-        attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(deviceSnapshot.toCacheJson()));
-        attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(environmentSnapshot.toCacheJson()));
-        attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(sessionSnapshot.toCacheJson()));
-        Event crash = new Event(throwable, allStackTraces, thread, Crashlife.getClient().getAttributes(), Crashlife.getClient().getFootprints());
-        mReportCache.cacheEvent(crash);
+    private void report(@NonNull final Thread thread, @NonNull final Throwable throwable) {
+        long deadline = SystemClock.uptimeMillis() + mDeadlineMillis;
+        // The handler is installed while the client is being created, so either may not be there yet
+        final Client client = Crashlife.getClient();
+        if (client == null) {
+            return;
+        }
+        // With the heap exhausted, the report below could well fail, so a spare one is written first.
+        // Only the ballast goes here; writing the spare report counts against the deadline like the rest.
+        final OutOfMemoryReporter outOfMemoryReporter = OutOfMemoryReporter.isOutOfMemory(throwable) ? client.getOutOfMemoryReporter() : null;
+        if (outOfMemoryReporter != null) {
+            outOfMemoryReporter.releaseBallast();
+        }
+        final StackTraceElement[] crashedThreadStack = thread.getStackTrace();
+        final CountDownLatch reported = new CountDownLatch(1);
+        Runnable stages = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutOfMemoryReporter spareReport = outOfMemoryReporter != null && outOfMemoryReporter.report(thread, throwable) ? outOfMemoryReporter : null;
+                    reportCrash(client, thread, crashedThreadStack, throwable, spareReport);
+                } catch (Throwable e) {
+                    // Thrown on, this would come straight back here
+                    Log.e("Unable to report crash", e);
+                } finally {
+                    reported.countDown();
+                }
+            }
+        };
+        try {
+            Thread stageThread = new Thread(stages, STAGE_THREAD_NAME);
+            stageThread.setDaemon(true);
+            stageThread.start();
+        } catch (Throwable e) {
+            stages.run(); // No thread to spare, so there's no deadline either
+        }
+        if (!awaitUntil(reported, deadline)) {
+            Log.w("Crash report not finished within " + mDeadlineMillis + "ms; passing the crash on");
+        }
+    }
+
+    /**
+     * @return Whether the latch opened before the deadline
+     */
+    private static boolean awaitUntil(@NonNull CountDownLatch latch, long deadline) {
+        boolean interrupted = false;
+        try {
+            for (long remaining = deadline - SystemClock.uptimeMillis(); remaining > 0; remaining = deadline - SystemClock.uptimeMillis()) {
+                try {
+                    if (latch.await(remaining, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return latch.getCount() == 0;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-        if (mPreviousUncaughtExceptionHandler != null) {
-            mPreviousUncaughtExceptionHandler.uncaughtException(thread, throwable);
+    /**
+     * Caches the minimal report, then replaces it with the enriched one.
+     * @param spareReport Where the out of memory report went, if one was written; withdrawn once a report is cached
+     */
+    private void reportCrash(@NonNull Client client, @NonNull Thread thread, @NonNull StackTraceElement[] crashedThreadStack,
+                             @NonNull Throwable throwable, @Nullable OutOfMemoryReporter spareReport) {
+        long minimalStart = SystemClock.elapsedRealtime();
+        Log.e("Unhandled exception:" + throwable.getMessage() + "\n stack trace:\n" + Arrays.toString(crashedThreadStack));
+        ClientState state = client.getState();
+        FootprintRecorder.Capture footprints = client.captureFootprints();
+        AttributeMap attributeMap = new AttributeMap();
+        Client.putDroppedFootprintCount(attributeMap, footprints.getDroppedCount());
+        Event minimal = new Event(throwable, Collections.<Thread, StackTraceElement[]>emptyMap(), thread, crashedThreadStack,
+                new AttributeMap(attributeMap), client.getPreparedCrashContext().getSections(state, false), footprints.getFootprints());
+        ReportManifest.Entry minimalEntry = mReportCache.cacheEvent(minimal);
+        if (minimalEntry != null && spareReport != null) {
+            spareReport.discard();
         }
-        else {
-            System.exit(1);
+        long minimalMillis = SystemClock.elapsedRealtime() - minimalStart;
+
+        long enrichedStart = SystemClock.elapsedRealtime();
+        Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
+        List<byte[]> preparedAttributes = client.getPreparedCrashContext().getSections(state, true);
+        // The enriched stage's own time is up to here; encoding and caching it can't be counted in it
+        putMillis(attributeMap, MINIMAL_STAGE_MILLIS_ATTRIBUTE, minimalMillis);
+        putMillis(attributeMap, ENRICHED_STAGE_MILLIS_ATTRIBUTE, SystemClock.elapsedRealtime() - enrichedStart);
+        Event enriched = new Event(throwable, allStackTraces, thread, crashedThreadStack, attributeMap, preparedAttributes, footprints.getFootprints());
+        if (mReportCache.cacheEvent(enriched) != null) {
+            if (minimalEntry != null) {
+                mReportCache.deleteCachedReports(Collections.singletonList(minimalEntry));
+            } else if (spareReport != null) {
+                spareReport.discard();
+            }
         }
+        client.flushPersistedState();
+        // The crash is cached first, since events logged just before it matter less
+        client.flushPendingEvents();
+    }
 
+    private static void putMillis(@NonNull AttributeMap attributes, @NonNull String key, long millis) {
+        attributes.put(key, new Attribute(Long.toString(millis), Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL));
     }
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A memory-mapped file holding the attributes and footprints of the current session, so that
+ * the crash service can attach them to a native crash report.
+ *
+ * Updates are plain memory writes into the mapping; the kernel keeps the pages even if the
+ * process dies, so the file is current at crash time without a write syscall per change.
+ *
+ * Layout (big-endian):
+ *   header      magic, version, region sizes, footprint byte budget
+ *   attributes  two halves; each change is written to the older half, so a torn write
+ *               always leaves the previous complete state in the other half
+ *   footprints  a ring of fixed-size slots, one footprint per slot, placed by the footprint's
+ *               sequence number so that threads leaving footprints at once never share a slot
+ *
+ * Each attributes half and each footprint slot starts and ends with the same sequence number
+ * once completely written. A mismatch means the write was torn, and the reader skips it.
+ * Footprints are numbered from 1 with no gaps, so whatever the newest number doesn't account
+ * for in the ring was dropped. Each footprint carries its estimated size as the recorder had it,
+ * since metadata that doesn't fit its slot is cut, and the reader applies the byte budget to that.
+ */
+final class CrashContextArena {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x434c4341; // "CLCA"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int ATTRIBUTES_HALF_SIZE_OFFSET = 8;
+    private static final int FOOTPRINT_SLOT_COUNT_OFFSET = 12;
+    private static final int FOOTPRINT_SLOT_SIZE_OFFSET = 16;
+    private static final int MAX_FOOTPRINT_BYTES_OFFSET = 24;
+
+    // Leading sequence number and payload length, then the trailing sequence number at the very end
+    private static final int BLOCK_OVERHEAD = 8 + 4 + 8;
+
+    static final int DEFAULT_ATTRIBUTES_HALF_SIZE = 32 * 1024;
+    static final int DEFAULT_FOOTPRINT_SLOT_SIZE = 512;
+
+    @NonNull private final MappedByteBuffer mBuffer;
+    private final int mAttributesHalfSize;
+    private final int mFootprintSlotCount;
+    private final int mFootprintSlotSize;
+    private long mAttributesSequence;
+    @NonNull private final AttributesEncoder mAttributesEncoder = new AttributesEncoder();
+
+    private CrashContextArena(@NonNull MappedByteBuffer buffer, int attributesHalfSize, int footprintSlotCount, int footprintSlotSize) {
+        mBuffer = buffer;
+        mAttributesHalfSize = attributesHalfSize;
+        mFootprintSlotCount = footprintSlotCount;
+        mFootprintSlotSize = footprintSlotSize;
+    }
+
+    /**
+     * Creates and maps a new, empty arena file.
+     */
+    @NonNull
+    static CrashContextArena create(@NonNull File file, int footprintSlotCount, long maxFootprintBytes) throws IOException {
+        int attributesHalfSize = DEFAULT_ATTRIBUTES_HALF_SIZE;
+        int footprintSlotSize = DEFAULT_FOOTPRINT_SLOT_SIZE;
+        long size = (long) HEADER_SIZE + 2L * attributesHalfSize + (long) footprintSlotCount * footprintSlotSize;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            randomAccessFile.setLength(size);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            randomAccessFile.close();
+        }
+
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(ATTRIBUTES_HALF_SIZE_OFFSET, attributesHalfSize);
+        buffer.putInt(FOOTPRINT_SLOT_COUNT_OFFSET, footprintSlotCount);
+        buffer.putInt(FOOTPRINT_SLOT_SIZE_OFFSET, footprintSlotSize);
+        buffer.putLong(MAX_FOOTPRINT_BYTES_OFFSET, maxFootprintBytes);
+        // Written last, so a half-initialized file is never mistaken for a valid one
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        return new CrashContextArena(buffer, attributesHalfSize, footprintSlotCount, footprintSlotSize);
+    }
+
+    /**
+     * Writes the attributes to the older half. Encodes straight into the mapping, like footprints, and
+     * walks the map without an iterator, so writing the attributes allocates nothing.
+     *
+     * Not thread-safe; the caller makes sure only one thread writes the attributes at a time.
+     */
+    void writeAttributes(@NonNull AttributeMap attributes) {
+        mAttributesSequence++;
+        // Odd sequence numbers go in the first half, even ones in the second
+        int offset = HEADER_SIZE + (mAttributesSequence % 2 == 1 ? 0 : mAttributesHalfSize);
+        mBuffer.putLong(offset, mAttributesSequence);
+        AttributesEncoder encoder = mAttributesEncoder;
+        encoder.mPosition = offset + 16;
+        encoder.mLimit = offset + mAttributesHalfSize - 8;
+        encoder.mEntryCount = 0;
+        attributes.forEach(encoder);
+        mBuffer.putInt(offset + 12, encoder.mEntryCount);
+        mBuffer.putInt(offset + 8, encoder.mPosition - offset - 12);
+        mBuffer.putLong(offset + mAttributesHalfSize - 8, mAttributesSequence);
+    }
+
+    // Appends each attribute to the half being written, until one doesn't fit
+    private final class AttributesEncoder implements PersistentHashMap.Visitor<String, Attribute> {
+        int mPosition;
+        int mLimit;
+        int mEntryCount;
+
+        @Override
+        public boolean visit(@NonNull String key, @NonNull Attribute attribute) {
+            int next = putString(mPosition, mLimit, key);
+            next = next < 0 ? -1 : putString(next, mLimit, attribute.getValue());
+            if (next < 0 || mLimit - next < 4) {
+                // Out of room; keep what fit
+                return false;
+            }
+            mBuffer.putInt(next, attribute.getFlags());
+            mPosition = next + 4;
+            mEntryCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Writes a footprint to the slot its sequence number maps to. Doesn't lock: concurrent calls write
+     * to different slots unless they're a whole ring apart, and then the torn slot is skipped on read.
+     *
+     * Encodes straight into the mapping, so footprints left with inline pairs are written without
+     * allocating anything.
+     */
+    void appendFootprint(@NonNull FootprintRecorder.Slot footprint) {
+        if (mFootprintSlotCount == 0) {
+            return;
+        }
+        long sequence = footprint.getSequence();
+        int slot = (int) ((sequence - 1) % mFootprintSlotCount);
+        int offset = HEADER_SIZE + 2 * mAttributesHalfSize + slot * mFootprintSlotSize;
+        int limit = offset + mFootprintSlotSize - 8;
+        mBuffer.putLong(offset, sequence);
+        int position = offset + 12;
+        mBuffer.putLong(position, footprint.getTimestamp());
+        position += 8;
+        mBuffer.putInt(position, footprint.getSize());
+        position += 4;
+        int next = putString(position, limit, footprint.getName());
+        position = next >= 0 ? next : putString(position, limit, null);
+        int entryCountPosition = position;
+        position += 4;
+        int entryCount = 0;
+        Footprint built = footprint.getFootprint();
+        if (built != null) {
+            for (Map.Entry<String, Attribute> entry : built.getMetadata().entrySet()) {
+                Attribute attribute = entry.getValue();
+                next = putEntry(position, limit, entry.getKey(), FootprintRecorder.VALUE_STRING, attribute == null ? null : attribute.getValue(), 0);
+                if (next < 0) {
+                    break;
+                }
+                position = next;
+                entryCount++;
+            }
+        } else {
+            for (int i = 0; i < footprint.getPairCount(); i++) {
+                next = putEntry(position, limit, footprint.getKey(i), footprint.getValueType(i), footprint.getStringValue(i), footprint.getPrimitiveValue(i));
+                if (next < 0) {
+                    break;
+                }
+                position = next;
+                entryCount++;
+            }
+        }
+        mBuffer.putInt(entryCountPosition, entryCount);
+        mBuffer.putInt(offset + 8, position - offset - 12);
+        mBuffer.putLong(offset + mFootprintSlotSize - 8, sequence);
+    }
+
+    // Returns the position after the entry, or -1 if it doesn't fit
+    private int putEntry(int position, int limit, @NonNull String key, int valueType, @Nullable String stringValue, long primitiveValue) {
+        position = putString(position, limit, key);
+        if (position < 0 || position >= limit) {
+            return -1;
+        }
+        mBuffer.put(position++, (byte) valueType);
+        switch (valueType) {
+            case FootprintRecorder.VALUE_LONG:
+            case FootprintRecorder.VALUE_DOUBLE:
+                if (limit - position < 8) {
+                    return -1;
+                }
+                mBuffer.putLong(position, primitiveValue);
+                return position + 8;
+            case FootprintRecorder.VALUE_BOOLEAN:
+                if (position >= limit) {
+                    return -1;
+                }
+                mBuffer.put(position, (byte) primitiveValue);
+                return position + 1;
+            default:
+                return putString(position, limit, stringValue);
+        }
+    }
+
+    // Encodes the string as UTF-8 without going through a byte array. Returns the position after it, or -1 if it doesn't fit.
+    private int putString(int position, int limit, @Nullable String string) {
+        if (limit - position < 4) {
+            return -1;
+        }
+        if (string == null) {
+            mBuffer.putInt(position, -1);
+            return position + 4;
+        }
+        int length = utf8Length(string);
+        if (limit - position - 4 < length) {
+            return -1;
+        }
+        mBuffer.putInt(position, length);
+        position += 4;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                mBuffer.put(position++, (byte) c);
+            } else if (c < 0x800) {
+                mBuffer.put(position++, (byte) (0xc0 | (c >> 6)));
+                mBuffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                mBuffer.put(position++, (byte) (0xf0 | (codePoint >> 18)));
+                mBuffer.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                mBuffer.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                mBuffer.put(position++, (byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, so not encodable; same replacement String.getBytes() uses
+                mBuffer.put(position++, (byte) '?');
+            } else {
+                mBuffer.put(position++, (byte) (0xe0 | (c >> 12)));
+                mBuffer.put(position++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                mBuffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return position;
+    }
+
+    private static int utf8Length(@NonNull String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Nullable
+    private static String getString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * The contents of an arena file, as read back after a crash.
+     */
+    static final class Contents {
+        @NonNull final AttributeMap attributes;
+        @NonNull final List<Footprint> footprints;
+        final long droppedFootprintCount;
+
+        private Contents(@NonNull AttributeMap attributes, @NonNull List<Footprint> footprints, long droppedFootprintCount) {
+            this.attributes = attributes;
+            this.footprints = footprints;
+            this.droppedFootprintCount = droppedFootprintCount;
+        }
+    }
+
+    @NonNull
+    static Contents read(@NonNull File file) throws IOException {
+        byte[] bytes = IOUtils.readBytesFromFile(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Not a crash context arena: " + file.getName());
+        }
+        int attributesHalfSize = buffer.getInt(ATTRIBUTES_HALF_SIZE_OFFSET);
+        int footprintSlotCount = buffer.getInt(FOOTPRINT_SLOT_COUNT_OFFSET);
+        int footprintSlotSize = buffer.getInt(FOOTPRINT_SLOT_SIZE_OFFSET);
+        long maxFootprintBytes = buffer.getLong(MAX_FOOTPRINT_BYTES_OFFSET);
+        if ((long) HEADER_SIZE + 2L * attributesHalfSize + (long) footprintSlotCount * footprintSlotSize > bytes.length) {
+            throw new IOException("Truncated crash context arena: " + file.getName());
+        }
+
+        AttributeMap attributes = new AttributeMap();
+        long firstSequence = blockSequence(buffer, HEADER_SIZE, attributesHalfSize);
+        long secondSequence = blockSequence(buffer, HEADER_SIZE + attributesHalfSize, attributesHalfSize);
+        if (firstSequence > 0 || secondSequence > 0) {
+            int offset = HEADER_SIZE + (firstSequence > secondSequence ? 0 : attributesHalfSize);
+            ByteBuffer payload = blockPayload(buffer, offset);
+            int entryCount = payload.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = getString(payload);
+                String value = getString(payload);
+                int flags = payload.getInt();
+                if (key != null) {
+                    attributes.put(key, new Attribute(value, Attribute.ValueType.STRING, flags));
+                }
+            }
+        }
+
+        final ArrayList<Long> sequences = new ArrayList<>();
+        ArrayList<Integer> sizes = new ArrayList<>();
+        long newestSequence = 0;
+        ArrayList<Footprint> footprints = new ArrayList<>();
+        int footprintsOffset = HEADER_SIZE + 2 * attributesHalfSize;
+        for (int slot = 0; slot < footprintSlotCount; slot++) {
+            int offset = footprintsOffset + slot * footprintSlotSize;
+            long sequence = blockSequence(buffer, offset, footprintSlotSize);
+            if (sequence <= 0) {
+                continue;
+            }
+            ByteBuffer payload = blockPayload(buffer, offset);
+            long timestamp = payload.getLong();
+            int size = payload.getInt();
+            String name = getString(payload);
+            int entryCount = payload.getInt();
+            AttributeMap metadata = new AttributeMap();
+            for (int i = 0; i < entryCount; i++) {
+                String key = getString(payload);
+                String value = getValue(payload);
+                if (key != null) {
+                    metadata.put(key, new Attribute(value, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM));
+                }
+            }
+            Footprint footprint = new Footprint(name, metadata, new Date(timestamp));
+            sequences.add(sequence);
+            sizes.add(size);
+            newestSequence = Math.max(newestSequence, sequence);
+            footprints.add(footprint);
+        }
+
+        long droppedFootprintCount = newestSequence - footprints.size();
+
+        // Slots are reused round-robin; put them back in the order they were left
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int i = 0; i < footprints.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = sequences.get(lhs);
+                long r = sequences.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        // Apply the same byte budget the recorder would have, newest first. Footprints too big for the budget
+        // on their own are mirrored all the same, but the recorder never keeps them, so they don't use it up.
+        ArrayList<Footprint> kept = new ArrayList<>();
+        long keptBytes = 0;
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Footprint footprint = footprints.get(order.get(i));
+            long size = sizes.get(order.get(i));
+            if (size > maxFootprintBytes) {
+                droppedFootprintCount++;
+                continue;
+            }
+            keptBytes += size;
+            if (keptBytes > maxFootprintBytes) {
+                droppedFootprintCount += i + 1;
+                break;
+            }
+            kept.add(footprint);
+        }
+        Collections.reverse(kept);
+        return new Contents(attributes, kept, droppedFootprintCount);
+    }
+
+    @Nullable
+    private static String getValue(@NonNull ByteBuffer buffer) {
+        int valueType = buffer.get();
+        switch (valueType) {
+            case FootprintRecorder.VALUE_LONG:
+            case FootprintRecorder.VALUE_DOUBLE:
+                return FootprintRecorder.formatValue(valueType, null, buffer.getLong());
+            case FootprintRecorder.VALUE_BOOLEAN:
+                return FootprintRecorder.formatValue(valueType, null, buffer.get());
+            default:
+                return getString(buffer);
+        }
+    }
+
+    // Returns the block's sequence number, or 0 if it was never written or the write was torn
+    private static long blockSequence(@NonNull ByteBuffer buffer, int offset, int blockSize) {
+        long leading = buffer.getLong(offset);
+        long trailing = buffer.getLong(offset + blockSize - 8);
+        int length = buffer.getInt(offset + 8);
+        if (leading != trailing || length < 0 || length > blockSize - BLOCK_OVERHEAD) {
+            return 0;
+        }
+        return leading;
+    }
+
+    @NonNull
+    private static ByteBuffer blockPayload(@NonNull ByteBuffer buffer, int offset) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + 12);
+        payload.limit(offset + 12 + buffer.getInt(offset + 8));
+        return payload.slice();
+    }
+}
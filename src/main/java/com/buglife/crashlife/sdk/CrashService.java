@@ -117,17 +117,22 @@ public class CrashService extends NDCrashService {
             e.printStackTrace();
         }
 
-        JSONObject metadata = new JSONObject();
-        JsonUtils.safePut(metadata, "environment_snapshot", environmentSnapshot.toCacheJson());
-        JsonUtils.safePut(metadata, "device_snapshot", deviceSnapshot.toCacheJson());
-        JsonUtils.safePut(metadata, "lib_file_ids", libFileIds);
-
         File reportFile = new File(reportPath);
-        String uuid = reportFile.getName().replace(".txt", "");
+        String uuid = reportFile.getName().replace(NativeCrashContainer.TOMBSTONE_EXTENSION, "");
         File crashFolder = reportFile.getParentFile();
+        JSONObject snapshots = NativeCrashContainer.snapshots(environmentSnapshot, deviceSnapshot);
+        try {
+            NativeCrashContainer.pack(crashFolder, uuid, snapshots, libFileIds);
+            return;
+        } catch (IOException e) {
+            Log.w("Unable to pack Crashlife native crash; it will be packed on the next launch.", e);
+        }
+
+        // Leave the snapshots next to the tombstone, for the next launch to pack
+        JsonUtils.safePut(snapshots, NativeCrashContainer.LIB_FILE_IDS, libFileIds);
         File metadataFile = new File(crashFolder, uuid + ReportCache.SNAPSHOTS_FILE_SUFFIX);
         try {
-            IOUtils.writeStringToFile(metadata.toString(), metadataFile);
+            IOUtils.writeStringToFile(snapshots.toString(), metadataFile);
         } catch (IOException e) {
             Log.e("Unable to write Crashlife native crash to disk. If you see this message, please contact support@buglife.com.");
             e.printStackTrace();
@@ -22,7 +22,6 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
 import java.util.Map;
 
 public final class Crashlife {
@@ -32,12 +31,16 @@ public final class Crashlife {
     private Crashlife() {}
 
     public static synchronized void initWithApiKey(@NonNull Context context, @NonNull String apiKey) {
+        initWithApiKey(context, apiKey, new CrashlifeOptions.Builder().build());
+    }
+
+    public static synchronized void initWithApiKey(@NonNull Context context, @NonNull String apiKey, @NonNull CrashlifeOptions options) {
         if (!isMainProcess(context)) {
             return;
         }
         boolean alreadyStarted = false;
         if (sClient == null) {
-            sClient = new Client(context, apiKey);
+            sClient = new Client(context, apiKey, options);
         } else {
             alreadyStarted = true;
         }
@@ -109,7 +112,40 @@ public final class Crashlife {
     }
     public static void leaveFootprint(String name) {
         if (getClient() != null) {
-            getClient().leaveFootprint(name, new HashMap<String, String>());
+            getClient().leaveFootprint(name);
+        }
+    }
+
+    // Unlike the Map overload, these don't allocate, so they're cheap enough for hot paths like scroll handlers
+
+    public static void leaveFootprint(String name, String key, String value) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key, value);
+        }
+    }
+    public static void leaveFootprint(String name, String key, long value) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key, value);
+        }
+    }
+    public static void leaveFootprint(String name, String key, double value) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key, value);
+        }
+    }
+    public static void leaveFootprint(String name, String key, boolean value) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key, value);
+        }
+    }
+    public static void leaveFootprint(String name, String key1, String value1, String key2, String value2) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key1, value1, key2, value2);
+        }
+    }
+    public static void leaveFootprint(String name, String key1, String value1, String key2, String value2, String key3, String value3) {
+        if (getClient() != null) {
+            getClient().leaveFootprint(name, key1, value1, key2, value2, key3, value3);
         }
     }
 
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tuning options for Crashlife. Pass an instance to {@link Crashlife#initWithApiKey(android.content.Context, String, CrashlifeOptions)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CrashlifeOptions {
+    static final int DEFAULT_MAX_FOOTPRINTS = 200;
+    static final long DEFAULT_MAX_FOOTPRINT_BYTES = 64 * 1024;
+    static final long DEFAULT_PERSISTENCE_DEBOUNCE_MILLIS = 250;
+    static final long DEFAULT_PERSISTENCE_MAX_LATENCY_MILLIS = 2000;
+    static final int DEFAULT_MAX_CACHED_EVENTS = 100;
+    static final long DEFAULT_MAX_CACHE_BYTES = 5 * 1024 * 1024;
+    static final long DEFAULT_MAX_CACHED_EVENT_AGE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    static final int DEFAULT_EVENT_QUEUE_CAPACITY = 64;
+    static final EventOverflowPolicy DEFAULT_EVENT_OVERFLOW_POLICY = EventOverflowPolicy.DROP_OLDEST;
+    static final long DEFAULT_EVENT_QUEUE_BLOCK_TIMEOUT_MILLIS = 100;
+    static final long DEFAULT_CRASH_HANDLER_DEADLINE_MILLIS = 2000;
+    static final long DEFAULT_HANG_THRESHOLD_MILLIS = 5000;
+    static final long DEFAULT_HANG_SAMPLE_INTERVAL_MILLIS = 200;
+    static final ThreadDumpPolicy DEFAULT_THREAD_DUMP_POLICY = new ThreadDumpPolicy.Builder(ThreadDumpPolicy.Mode.ALL_THREADS).build();
+
+    /**
+     * What logging an event does when the queue of events waiting to be captured is full.
+     */
+    public enum EventOverflowPolicy {
+        /** Drop the oldest queued event to make room, or the new one if none is left waiting */
+        DROP_OLDEST,
+        /** Drop the event being logged */
+        DROP_NEWEST,
+        /** Wait for room, up to the block timeout, then drop the event being logged */
+        BLOCK
+    }
+
+    private final int mMaxFootprints;
+    private final long mMaxFootprintBytes;
+    private final long mPersistenceDebounceMillis;
+    private final long mPersistenceMaxLatencyMillis;
+    private final int mMaxCachedEvents;
+    private final long mMaxCacheBytes;
+    private final long mMaxCachedEventAgeMillis;
+    private final int mEventQueueCapacity;
+    @NonNull private final EventOverflowPolicy mEventOverflowPolicy;
+    private final long mEventQueueBlockTimeoutMillis;
+    @NonNull private final ThreadDumpPolicy mThreadDumpPolicy;
+    @NonNull private final List<String> mInAppPackages;
+    private final long mCrashHandlerDeadlineMillis;
+    private final long mHangThresholdMillis;
+    private final long mHangSampleIntervalMillis;
+
+    private CrashlifeOptions(Builder builder) {
+        mMaxFootprints = builder.mMaxFootprints;
+        mMaxFootprintBytes = builder.mMaxFootprintBytes;
+        mPersistenceDebounceMillis = builder.mPersistenceDebounceMillis;
+        mPersistenceMaxLatencyMillis = builder.mPersistenceMaxLatencyMillis;
+        mMaxCachedEvents = builder.mMaxCachedEvents;
+        mMaxCacheBytes = builder.mMaxCacheBytes;
+        mMaxCachedEventAgeMillis = builder.mMaxCachedEventAgeMillis;
+        mEventQueueCapacity = builder.mEventQueueCapacity;
+        mEventOverflowPolicy = builder.mEventOverflowPolicy;
+        mEventQueueBlockTimeoutMillis = builder.mEventQueueBlockTimeoutMillis;
+        mThreadDumpPolicy = builder.mThreadDumpPolicy;
+        mInAppPackages = Collections.unmodifiableList(new ArrayList<>(builder.mInAppPackages));
+        mCrashHandlerDeadlineMillis = builder.mCrashHandlerDeadlineMillis;
+        mHangThresholdMillis = builder.mHangThresholdMillis;
+        mHangSampleIntervalMillis = builder.mHangSampleIntervalMillis;
+    }
+
+    int getMaxFootprints() {
+        return mMaxFootprints;
+    }
+
+    long getMaxFootprintBytes() {
+        return mMaxFootprintBytes;
+    }
+
+    long getPersistenceDebounceMillis() {
+        return mPersistenceDebounceMillis;
+    }
+
+    long getPersistenceMaxLatencyMillis() {
+        return mPersistenceMaxLatencyMillis;
+    }
+
+    int getMaxCachedEvents() {
+        return mMaxCachedEvents;
+    }
+
+    long getMaxCacheBytes() {
+        return mMaxCacheBytes;
+    }
+
+    long getMaxCachedEventAgeMillis() {
+        return mMaxCachedEventAgeMillis;
+    }
+
+    int getEventQueueCapacity() {
+        return mEventQueueCapacity;
+    }
+
+    @NonNull
+    EventOverflowPolicy getEventOverflowPolicy() {
+        return mEventOverflowPolicy;
+    }
+
+    long getEventQueueBlockTimeoutMillis() {
+        return mEventQueueBlockTimeoutMillis;
+    }
+
+    @NonNull
+    ThreadDumpPolicy getThreadDumpPolicy() {
+        return mThreadDumpPolicy;
+    }
+
+    @NonNull
+    List<String> getInAppPackages() {
+        return mInAppPackages;
+    }
+
+    long getCrashHandlerDeadlineMillis() {
+        return mCrashHandlerDeadlineMillis;
+    }
+
+    /**
+     * @return 0 if hangs aren't watched for
+     */
+    long getHangThresholdMillis() {
+        return mHangThresholdMillis;
+    }
+
+    long getHangSampleIntervalMillis() {
+        return mHangSampleIntervalMillis;
+    }
+
+    public static final class Builder {
+        private int mMaxFootprints = DEFAULT_MAX_FOOTPRINTS;
+        private long mMaxFootprintBytes = DEFAULT_MAX_FOOTPRINT_BYTES;
+        private long mPersistenceDebounceMillis = DEFAULT_PERSISTENCE_DEBOUNCE_MILLIS;
+        private long mPersistenceMaxLatencyMillis = DEFAULT_PERSISTENCE_MAX_LATENCY_MILLIS;
+        private int mMaxCachedEvents = DEFAULT_MAX_CACHED_EVENTS;
+        private long mMaxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
+        private long mMaxCachedEventAgeMillis = DEFAULT_MAX_CACHED_EVENT_AGE_MILLIS;
+        private int mEventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+        private EventOverflowPolicy mEventOverflowPolicy = DEFAULT_EVENT_OVERFLOW_POLICY;
+        private long mEventQueueBlockTimeoutMillis = DEFAULT_EVENT_QUEUE_BLOCK_TIMEOUT_MILLIS;
+        private ThreadDumpPolicy mThreadDumpPolicy = DEFAULT_THREAD_DUMP_POLICY;
+        private List<String> mInAppPackages = Collections.emptyList();
+        private long mCrashHandlerDeadlineMillis = DEFAULT_CRASH_HANDLER_DEADLINE_MILLIS;
+        private long mHangThresholdMillis = DEFAULT_HANG_THRESHOLD_MILLIS;
+        private long mHangSampleIntervalMillis = DEFAULT_HANG_SAMPLE_INTERVAL_MILLIS;
+
+        public Builder() {
+        }
+
+        /**
+         * Sets the maximum number of footprints kept and attached to events. Once reached, the oldest are dropped.
+         */
+        @NonNull
+        public Builder maxFootprints(int maxFootprints) {
+            if (maxFootprints < 0) {
+                throw new IllegalArgumentException("maxFootprints must not be negative");
+            }
+            mMaxFootprints = maxFootprints;
+            return this;
+        }
+
+        /**
+         * Sets the approximate number of bytes that kept footprints, including their metadata, may take up.
+         * Once reached, the oldest are dropped.
+         */
+        @NonNull
+        public Builder maxFootprintBytes(long maxFootprintBytes) {
+            if (maxFootprintBytes < 0) {
+                throw new IllegalArgumentException("maxFootprintBytes must not be negative");
+            }
+            mMaxFootprintBytes = maxFootprintBytes;
+            return this;
+        }
+
+        /**
+         * Attributes, footprints and the user identifier are saved to disk in the background so they can be
+         * attached to native crash reports. Changes made within the debounce window of each other are saved
+         * together, but never later than the max latency after the first unsaved change.
+         */
+        @NonNull
+        public Builder persistenceDelay(long debounceMillis, long maxLatencyMillis) {
+            if (debounceMillis < 0 || maxLatencyMillis < 0) {
+                throw new IllegalArgumentException("Persistence delays must not be negative");
+            }
+            mPersistenceDebounceMillis = debounceMillis;
+            mPersistenceMaxLatencyMillis = maxLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Events that haven't been sent yet are kept on disk until they can be. Once the cache holds more than
+         * maxEvents events or takes up more than maxBytes, events are evicted, least severe and oldest first.
+         * Events older than maxAgeMillis are evicted regardless. The byte limit shrinks further when the
+         * device is low on storage.
+         */
+        @NonNull
+        public Builder cacheLimits(int maxEvents, long maxBytes, long maxAgeMillis) {
+            if (maxEvents < 1 || maxBytes < 1 || maxAgeMillis < 1) {
+                throw new IllegalArgumentException("Cache limits must be positive");
+            }
+            mMaxCachedEvents = maxEvents;
+            mMaxCacheBytes = maxBytes;
+            mMaxCachedEventAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Logged exceptions and messages are built into events, cached and sent on a background thread.
+         * Up to capacity of them can wait for it at once; past that, the overflow policy decides which
+         * are dropped. With {@link EventOverflowPolicy#BLOCK}, logging waits up to blockTimeoutMillis
+         * for room before dropping the event.
+         */
+        @NonNull
+        public Builder eventQueue(int capacity, @NonNull EventOverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Event queue capacity must be positive");
+            }
+            if (blockTimeoutMillis < 0) {
+                throw new IllegalArgumentException("blockTimeoutMillis must not be negative");
+            }
+            mEventQueueCapacity = capacity;
+            mEventOverflowPolicy = overflowPolicy;
+            mEventQueueBlockTimeoutMillis = blockTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets which threads' stacks are attached to events for logged exceptions. By default, every
+         * thread is, but at most once every few seconds; events logged in between get a sample.
+         */
+        @NonNull
+        public Builder threadDumpPolicy(@NonNull ThreadDumpPolicy threadDumpPolicy) {
+            mThreadDumpPolicy = threadDumpPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the packages whose classes count as the app's own code in stack traces, such as "com.example.app".
+         * Each package includes its subpackages. By default, classes that share the first two components of
+         * the app's package name are the app's own.
+         */
+        @NonNull
+        public Builder inAppPackages(@NonNull String... packages) {
+            mInAppPackages = Arrays.asList(packages.clone());
+            return this;
+        }
+
+        /**
+         * Sets how long an uncaught exception is held up while it's reported. A minimal report is saved
+         * first, then replaced by one with every thread's stack and the full environment if that's done
+         * in time. Either way, the exception is passed on to the previous handler once the deadline is up.
+         */
+        @NonNull
+        public Builder crashHandlerDeadline(long deadlineMillis) {
+            if (deadlineMillis < 1) {
+                throw new IllegalArgumentException("Crash handler deadline must be positive");
+            }
+            mCrashHandlerDeadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        /**
+         * The main thread is watched for hangs. Once it hasn't handled a message for thresholdMillis, its
+         * stack is sampled every sampleIntervalMillis for a while, and the hang is reported as an error
+         * with the stack it was most often in. A threshold of 0 turns the watch off.
+         */
+        @NonNull
+        public Builder hangDetection(long thresholdMillis, long sampleIntervalMillis) {
+            if (thresholdMillis < 0) {
+                throw new IllegalArgumentException("Hang threshold must not be negative");
+            }
+            if (sampleIntervalMillis < 1) {
+                throw new IllegalArgumentException("Hang sample interval must be positive");
+            }
+            mHangThresholdMillis = thresholdMillis;
+            mHangSampleIntervalMillis = sampleIntervalMillis;
+            return this;
+        }
+
+        @NonNull
+        public CrashlifeOptions build() {
+            return new CrashlifeOptions(this);
+        }
+    }
+}
@@ -45,6 +45,7 @@ public final class DebugMenuActivity extends Activity {
         ArrayList<RowType> rowTypes = new ArrayList<>();
         rowTypes.add(RowType.ENDPOINT);
         rowTypes.add(RowType.CACHED_CRASH_COUNT);
+        rowTypes.add(RowType.PERSISTENCE_WRITES);
         rowTypes.add(RowType.CLEAR_CACHE);
         rowTypes.add(RowType.FORCE_CRASH);
         rowTypes.add(RowType.LOG_ERROR);
@@ -127,6 +128,15 @@ public final class DebugMenuActivity extends Activity {
                     int count = Crashlife.getClient().getCachedEventCount();
                     titleString = "Count";
                     detailString = Integer.toString(count);
+                    long dropped = Crashlife.getClient().getDroppedEventCount();
+                    if (dropped > 0) {
+                        detailString += " (" + dropped + " dropped)";
+                    }
+                    break;
+                case PERSISTENCE_WRITES:
+                    CoalescingPersister persister = Crashlife.getClient().getPersister();
+                    titleString = "State writes";
+                    detailString = persister.getWriteCount() + " written, " + persister.getWritesSaved() + " saved";
                     break;
                 case CLEAR_CACHE:
                     titleString = "Clear cache";
@@ -150,6 +160,6 @@ public final class DebugMenuActivity extends Activity {
     }
 
     private enum RowType {
-        ENDPOINT, CACHED_CRASH_COUNT, CLEAR_CACHE, FORCE_CRASH, LOG_ERROR
+        ENDPOINT, CACHED_CRASH_COUNT, PERSISTENCE_WRITES, CLEAR_CACHE, FORCE_CRASH, LOG_ERROR
     }
 }
@@ -67,7 +67,7 @@ public final class EnvironmentSnapshot implements Parcelable {
 
         StatFs externalStats = new StatFs(Environment.getExternalStorageDirectory().getPath());
         mTotalCapacityBytes = externalStats.getBlockSizeLong() * externalStats.getBlockCountLong();
-        mFreeCapacityBytes = externalStats.getBlockSizeLong() * externalStats.getAvailableBlocksLong();
+        mFreeCapacityBytes = EnvironmentUtils.getFreeCapacityBytes(externalStats);
 
         Connectivity connectivity = new Connectivity.Builder(mContext).build();
         mCarrierName = connectivity.getCarrierName();
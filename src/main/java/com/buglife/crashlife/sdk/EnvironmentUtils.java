@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.os.BatteryManager;
+import android.os.StatFs;
 import android.support.annotation.NonNull;
 
 import java.util.Locale;
@@ -54,6 +55,13 @@ class EnvironmentUtils {
         return configuration.locale;
     }
 
+    /**
+     * @return The bytes available to the app on the file system the given stats are for
+     */
+    static long getFreeCapacityBytes(@NonNull StatFs stats) {
+        return stats.getBlockSizeLong() * stats.getAvailableBlocksLong();
+    }
+
     @NonNull
     static ActivityManager.MemoryInfo getMemoryInfo(Context context) {
         ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
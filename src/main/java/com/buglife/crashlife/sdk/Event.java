@@ -19,15 +19,19 @@ package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -65,6 +69,17 @@ class Event implements JSONCaching {
     private static final String FOOTPRINTS = "footprints";
     private static final String SEVERITY = "severity";
     private static final String TIMESTAMP = "occurred_at";
+    private static final int FIELD_UUID = 1;
+    private static final int FIELD_THREAD = 2;
+    private static final int FIELD_EXCEPTION = 3;
+    private static final int FIELD_CRASHING_THREAD = 4;
+    private static final int FIELD_MESSAGE = 5;
+    private static final int FIELD_TOMBSTONE = 6;
+    private static final int FIELD_ATTRIBUTES = 7;
+    private static final int FIELD_FOOTPRINT = 8;
+    private static final int FIELD_SEVERITY = 9;
+    private static final int FIELD_TIMESTAMP = 10;
+    private static final int FIELD_STACK_TABLE = 11;
 
     @NonNull private final String mUuid;
     @Nullable private final List<ThreadData> mThreadDatas;
@@ -73,6 +88,8 @@ class Event implements JSONCaching {
     @Nullable private final String mMessage;
     @Nullable private final String mTombstone;
     @NonNull private final AttributeMap mAttributeMap;
+    // Attribute sections encoded ahead of time, written to the binary cache before mAttributeMap
+    @NonNull private final List<byte[]> mPreparedAttributeSections;
     @NonNull private final List<Footprint> mFootprints;
     @Nullable private final Severity mSeverity;
     @NonNull private Date mTimestamp;
@@ -94,21 +111,27 @@ class Event implements JSONCaching {
         mMessage = message;
         mTombstone = tombstone;
         mAttributeMap = attributeMap;
+        mPreparedAttributeSections = Collections.emptyList();
         mFootprints = footprints;
         mSeverity = severity;
         mTimestamp = timestamp;
     }
 
-    Event(@NonNull Throwable exception, @NonNull AttributeMap attributeMap, @NonNull List<Footprint> footprints) {
+    /**
+     * @param threadStackTraces The threads to attach, as picked by a {@link ThreadDumper}
+     */
+    Event(@NonNull Throwable exception, @NonNull Map<Thread, StackTraceElement[]> threadStackTraces,
+          @NonNull AttributeMap attributeMap, @NonNull List<Footprint> footprints) {
         mUuid = generateUuid();
         mExceptionDatas = new ArrayList<>();
         mExceptionDatas.add(new ExceptionData(exception));
-        mThreadDatas = ThreadData.threadDatas(Thread.getAllStackTraces());
+        mThreadDatas = ThreadData.threadDatas(threadStackTraces, new StackPool());
         mCrashingThread = null;
         mMessage = null;
         mTombstone = null;
         mSeverity = Severity.ERROR;
         mAttributeMap = attributeMap;
+        mPreparedAttributeSections = Collections.emptyList();
         mFootprints = footprints;
         mTimestamp = new Date();
     }
@@ -120,20 +143,31 @@ class Event implements JSONCaching {
     }
 
 
+    /**
+     * @param crashedThreadStack The crashed thread's stack, taken on that thread
+     * @param preparedAttributeSections Attributes already in the binary cache format, from a
+     *                                  {@link PreparedCrashContext}. They're only written to the
+     *                                  cache, where they come back merged into the attribute map,
+     *                                  and attributeMap wins over them where keys collide.
+     */
     // Take this as a parameter because we want to grab the stack trace with as few Crashlife frames as possible.
     Event(Throwable originalException,
           Map<Thread, StackTraceElement[]> allThreadStackTraces,
           Thread crashedThread,
+          @NonNull StackTraceElement[] crashedThreadStack,
           @NonNull AttributeMap attributeMap,
+          @NonNull List<byte[]> preparedAttributeSections,
           @NonNull List<Footprint> footprints) {
         mUuid = generateUuid();
-        mThreadDatas = ThreadData.threadDatas(allThreadStackTraces);
+        StackPool stackPool = new StackPool();
+        mThreadDatas = ThreadData.threadDatas(allThreadStackTraces, stackPool);
         mExceptionDatas = ExceptionData.exceptionDatas(originalException);
-        List<StackFrame> stackFrames = StackFrame.stackFrames(crashedThread.getStackTrace());
+        List<StackFrame> stackFrames = stackPool.intern(crashedThreadStack);
         mCrashingThread = new ThreadData(crashedThread, stackFrames);
         mMessage = originalException.getMessage();
         mTombstone = null;
         mAttributeMap = attributeMap;
+        mPreparedAttributeSections = preparedAttributeSections;
         mFootprints = footprints;
         mSeverity = Severity.CRASH;
         mTimestamp = new Date(0); // make it obvious we did something wrong, forgot to set the timestamp
@@ -150,6 +184,13 @@ class Event implements JSONCaching {
     public static Event error(@NonNull String message, @NonNull AttributeMap attributeMap, List<Footprint> footprints) {
         return new Event(Severity.ERROR, message, attributeMap, footprints);
     }
+    /**
+     * An error without an exception, but with the stacks of the threads it concerns, such as a hang
+     */
+    static Event error(@NonNull String message, @NonNull List<ThreadData> threadDatas, @NonNull AttributeMap attributeMap, List<Footprint> footprints) {
+        return new Event(generateUuid(), threadDatas, new ArrayList<ExceptionData>(), null, message, null, attributeMap, footprints, Severity.ERROR, new Date());
+    }
+
     static Event crash(@NonNull String tombstone, @NonNull AttributeMap attributeMap, List<Footprint> footprints, String uuid) {
         return new Event(Severity.CRASH, tombstone, attributeMap, footprints, uuid);
     }
@@ -220,6 +261,34 @@ class Event implements JSONCaching {
         JsonUtils.safePut(result, TIMESTAMP, sdf.format(mTimestamp));
         return result;
     }
+
+    public synchronized void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(UUID_FIELD).value(mUuid);
+        if (mThreadDatas != null) {
+            writer.name(THREADS);
+            JsonUtils.writeCacheJsonList(writer, mThreadDatas);
+        }
+        if (mExceptionDatas != null) {
+            writer.name(EXCEPTIONS);
+            JsonUtils.writeCacheJsonList(writer, mExceptionDatas);
+        }
+        if (mCrashingThread != null) {
+            writer.name(CRASHINGTHREAD);
+            mCrashingThread.writeCacheJson(writer);
+        }
+        JsonUtils.safeWrite(writer, MESSAGE, mMessage);
+        JsonUtils.safeWrite(writer, TOMBSTONE, mTombstone);
+        writer.name(ATTRIBUTEMAP);
+        mAttributeMap.writeCacheJson(writer);
+        writer.name(FOOTPRINTS);
+        JsonUtils.writeCacheJsonList(writer, mFootprints);
+        if (mSeverity != null) {
+            writer.name(SEVERITY).value(mSeverity.toString().toLowerCase());
+        }
+        writer.name(TIMESTAMP).value(sdf.format(mTimestamp));
+        writer.endObject();
+    }
     private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZ", Locale.US);
     @NonNull
     static synchronized Event fromCacheJson(JSONObject jsonObject) {
@@ -282,4 +351,119 @@ class Event implements JSONCaching {
 
         return new Event(uuid, threadDatas, exceptionDatas, crashingThread, message, tombstone, attributeMap, footprints, severity, timestamp);
     }
+
+    /**
+     * Writes the event in the binary cache format. JSON is only produced when the event is sent.
+     */
+    synchronized void writeCacheBinary(@NonNull BinaryCacheWriter writer) throws IOException {
+        writer.writeString(FIELD_UUID, mUuid);
+        // Every thread's stack goes in the table, once per distinct stack; threads only refer to them
+        List<ThreadData> allThreads = new ArrayList<>();
+        if (mThreadDatas != null) {
+            allThreads.addAll(mThreadDatas);
+        }
+        if (mCrashingThread != null) {
+            allThreads.add(mCrashingThread);
+        }
+        writer.beginObject(FIELD_STACK_TABLE);
+        IdentityHashMap<List<StackFrame>, Integer> stackIndexes = StackPool.writeTable(writer, allThreads);
+        writer.endObject();
+        if (mThreadDatas != null) {
+            for (ThreadData threadData : mThreadDatas) {
+                writer.beginObject(FIELD_THREAD);
+                threadData.writeCacheBinary(writer, stackIndexes.get(threadData.getStackframes()));
+                writer.endObject();
+            }
+        }
+        if (mExceptionDatas != null) {
+            for (ExceptionData exceptionData : mExceptionDatas) {
+                writer.beginObject(FIELD_EXCEPTION);
+                exceptionData.writeCacheBinary(writer);
+                writer.endObject();
+            }
+        }
+        if (mCrashingThread != null) {
+            writer.beginObject(FIELD_CRASHING_THREAD);
+            mCrashingThread.writeCacheBinary(writer, stackIndexes.get(mCrashingThread.getStackframes()));
+            writer.endObject();
+        }
+        writer.writeString(FIELD_MESSAGE, mMessage);
+        writer.writeString(FIELD_TOMBSTONE, mTombstone);
+        // Repeated attribute sections are merged in order when read
+        for (byte[] section : mPreparedAttributeSections) {
+            writer.writeBytes(FIELD_ATTRIBUTES, section);
+        }
+        writer.writeBytes(FIELD_ATTRIBUTES, mAttributeMap.toCacheBinary());
+        for (Footprint footprint : mFootprints) {
+            writer.beginObject(FIELD_FOOTPRINT);
+            footprint.writeCacheBinary(writer);
+            writer.endObject();
+        }
+        if (mSeverity != null) {
+            writer.writeInt(FIELD_SEVERITY, mSeverity.ordinal());
+        }
+        writer.writeLong(FIELD_TIMESTAMP, mTimestamp.getTime());
+        writer.endObject();
+    }
+
+    @NonNull
+    static Event readCacheBinary(@NonNull BinaryCacheReader reader) throws IOException {
+        String uuid = null;
+        List<ThreadData> threadDatas = new ArrayList<>();
+        List<ExceptionData> exceptionDatas = new ArrayList<>();
+        ThreadData crashingThread = null;
+        String message = null;
+        String tombstone = null;
+        AttributeMap attributeMap = new AttributeMap();
+        List<Footprint> footprints = new ArrayList<>();
+        Severity severity = null;
+        Date timestamp = new Date(0); // Left for the report cache to fill in, if the field is missing
+        List<List<StackFrame>> stacks = Collections.emptyList();
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_UUID:
+                    uuid = reader.readString();
+                    break;
+                case FIELD_STACK_TABLE:
+                    stacks = StackPool.readTable(reader);
+                    break;
+                case FIELD_THREAD:
+                    threadDatas.add(ThreadData.readCacheBinary(reader, stacks));
+                    break;
+                case FIELD_EXCEPTION:
+                    exceptionDatas.add(ExceptionData.readCacheBinary(reader));
+                    break;
+                case FIELD_CRASHING_THREAD:
+                    crashingThread = ThreadData.readCacheBinary(reader, stacks);
+                    break;
+                case FIELD_MESSAGE:
+                    message = reader.readString();
+                    break;
+                case FIELD_TOMBSTONE:
+                    tombstone = reader.readString();
+                    break;
+                case FIELD_ATTRIBUTES:
+                    attributeMap.putAll(AttributeMap.fromCacheBinary(reader.readBytes()));
+                    break;
+                case FIELD_FOOTPRINT:
+                    footprints.add(Footprint.readCacheBinary(reader));
+                    break;
+                case FIELD_SEVERITY:
+                    int severityOrdinal = reader.readInt();
+                    if (severityOrdinal >= 0 && severityOrdinal < Severity.values().length) {
+                        severity = Severity.values()[severityOrdinal];
+                    }
+                    break;
+                case FIELD_TIMESTAMP:
+                    timestamp = new Date(reader.readLong());
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        if (uuid == null) {
+            uuid = generateUuid(); // better to fake one than break things.
+        }
+        return new Event(uuid, threadDatas, exceptionDatas, crashingThread, message, tombstone, attributeMap, footprints, severity, timestamp);
+    }
 }
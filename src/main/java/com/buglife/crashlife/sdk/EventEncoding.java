@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk encoding of cached events.
+ *
+ * Payloads start with a format byte. Events are written as deflated {@link BinaryCacheWriter} records,
+ * prefixed with the binary format version. Plain JSON payloads, written by older versions of the SDK,
+ * start with '{', and deflated JSON payloads with 0x01; both are still read. Thread dumps repeat the
+ * same framework frames across dozens of threads, so deflating shrinks events several-fold even after
+ * the string table has deduplicated class and method names.
+ */
+final class EventEncoding {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte FORMAT_DEFLATED_JSON = 0x01;
+    private static final byte FORMAT_DEFLATED_BINARY = 0x02;
+    private static final byte FORMAT_PLAIN_JSON = '{';
+
+    private EventEncoding() {/* No instances */}
+
+    @NonNull
+    static byte[] encode(@NonNull Event event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(FORMAT_DEFLATED_BINARY);
+        // Fastest level; the repetition in stack traces is caught either way, and the crash path can't wait around
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            OutputStream output = new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater));
+            BinaryCacheWriter writer = new BinaryCacheWriter(output);
+            writer.writeVarint(BinaryCacheWriter.FORMAT_VERSION);
+            event.writeCacheBinary(writer);
+            output.close();
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    @NonNull
+    static Event decode(@NonNull byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IOException("Empty event payload");
+        }
+        switch (payload[0]) {
+            case FORMAT_PLAIN_JSON:
+                return fromJson(new String(payload, UTF_8));
+            case FORMAT_DEFLATED_JSON:
+                Inflater jsonInflater = new Inflater();
+                try {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length * 4);
+                    copy(inflate(payload, jsonInflater), output);
+                    return fromJson(output.toString("UTF-8"));
+                } finally {
+                    jsonInflater.end();
+                }
+            case FORMAT_DEFLATED_BINARY:
+                Inflater binaryInflater = new Inflater();
+                try {
+                    BinaryCacheReader reader = new BinaryCacheReader(new BufferedInputStream(inflate(payload, binaryInflater)));
+                    long version = reader.readVarint();
+                    if (version > BinaryCacheWriter.FORMAT_VERSION) {
+                        throw new IOException("Unsupported event format version " + version);
+                    }
+                    return Event.readCacheBinary(reader);
+                } finally {
+                    binaryInflater.end();
+                }
+            default:
+                throw new IOException("Unknown event format " + payload[0]);
+        }
+    }
+
+    @NonNull
+    private static InputStream inflate(@NonNull byte[] payload, @NonNull Inflater inflater) {
+        return new InflaterInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1), inflater);
+    }
+
+    @NonNull
+    private static Event fromJson(@NonNull String json) throws IOException {
+        try {
+            return Event.fromCacheJson(new JSONObject(json));
+        } catch (JSONException e) {
+            throw new IOException("Crashlife event was not a valid JSON object", e);
+        }
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[4096];
+        for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+            output.write(buffer, 0, read);
+        }
+    }
+}
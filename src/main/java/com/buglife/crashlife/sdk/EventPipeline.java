@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the expensive part of capturing non-fatal events (building, caching and submitting them)
+ * on a worker thread, so that logging an event costs the caller little more than a queue insert.
+ *
+ * The queue is bounded. What happens when it's full is up to the {@link CrashlifeOptions.EventOverflowPolicy}:
+ * either an event is dropped, oldest or newest, or the caller waits for room, up to a timeout. When
+ * dropping the oldest, and every event is already being worked on, it's the newest that's dropped.
+ *
+ * A permit is held for every task that's queued or running, so the worker releases one per task
+ * it finishes. Dropping the oldest task hands its permit over to the new one.
+ */
+final class EventPipeline {
+    @NonNull private final Executor mWorker;
+    @NonNull private final CrashlifeOptions.EventOverflowPolicy mOverflowPolicy;
+    private final long mBlockTimeoutMillis;
+    @NonNull private final ConcurrentLinkedQueue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+    @NonNull private final Semaphore mCapacity;
+    @NonNull private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    @NonNull private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, so a task queued after the last poll schedules another drain
+            mDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * @param worker Runs drains of the queue, one at a time
+     */
+    EventPipeline(@NonNull Executor worker, int capacity, @NonNull CrashlifeOptions.EventOverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        mWorker = worker;
+        mCapacity = new Semaphore(capacity);
+        mOverflowPolicy = overflowPolicy;
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Queues a task for the worker thread.
+     * @return false if the task was dropped, rather than queued
+     */
+    boolean submit(@NonNull Runnable task) {
+        if (!mCapacity.tryAcquire() && !makeRoom()) {
+            mDroppedCount.incrementAndGet();
+            Log.w("Crashlife event queue is full; dropping event");
+            return false;
+        }
+        mQueue.offer(task);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mWorker.execute(mDrainRunnable);
+        }
+        return true;
+    }
+
+    // Returns true once the caller holds a permit
+    private boolean makeRoom() {
+        switch (mOverflowPolicy) {
+            case DROP_OLDEST:
+                if (mQueue.poll() != null) {
+                    mDroppedCount.incrementAndGet();
+                    Log.w("Crashlife event queue is full; dropping oldest event");
+                    return true;
+                }
+                // Every permit belongs to a task that's running or about to be queued. Rather than
+                // wait for one of them, the new event is dropped, unless a permit came free meanwhile.
+                return mCapacity.tryAcquire();
+            case BLOCK:
+                try {
+                    return mCapacity.tryAcquire(mBlockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs every queued task on the calling thread. For crash paths, where the worker may never get to them.
+     */
+    void flush() {
+        drain();
+    }
+
+    private void drain() {
+        for (Runnable task = mQueue.poll(); task != null; task = mQueue.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e("Error capturing Crashlife event", e);
+            } finally {
+                mCapacity.release();
+            }
+        }
+    }
+
+    /**
+     * @return How many events have been dropped because the queue was full
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -19,11 +19,13 @@ package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +34,10 @@ final class ExceptionData implements JSONCaching {
     private static final String LOCALIZED_MESSAGE = "localized_message";
     private static final String EXCEPTION_CLASS = "exception_class";
     private static final String STACK_FRAMES = "stack_frames";
+    private static final int FIELD_MESSAGE = 1;
+    private static final int FIELD_LOCALIZED_MESSAGE = 2;
+    private static final int FIELD_EXCEPTION_CLASS = 3;
+    private static final int FIELD_STACK_FRAME = 4;
     private final String mMessage;
     private final String mLocalizedMessage;
     private final String mExceptionClass;
@@ -92,6 +98,16 @@ final class ExceptionData implements JSONCaching {
         return result;
     }
 
+    public void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        JsonUtils.safeWrite(writer, MESSAGE, getMessage());
+        JsonUtils.safeWrite(writer, LOCALIZED_MESSAGE, getLocalizedMessage());
+        JsonUtils.safeWrite(writer, EXCEPTION_CLASS, getExceptionClass());
+        writer.name(STACK_FRAMES);
+        JsonUtils.writeCacheJsonList(writer, mStackframes);
+        writer.endObject();
+    }
+
     @NonNull
     private static ExceptionData fromCacheJson(JSONObject jsonObject) {
         String message;
@@ -131,4 +147,42 @@ final class ExceptionData implements JSONCaching {
 
         return result;
     }
+
+    void writeCacheBinary(@NonNull BinaryCacheWriter writer) throws IOException {
+        writer.writeString(FIELD_MESSAGE, mMessage);
+        writer.writeString(FIELD_LOCALIZED_MESSAGE, mLocalizedMessage);
+        writer.writeString(FIELD_EXCEPTION_CLASS, mExceptionClass);
+        for (StackFrame stackFrame : mStackframes) {
+            writer.beginObject(FIELD_STACK_FRAME);
+            stackFrame.writeCacheBinary(writer);
+            writer.endObject();
+        }
+    }
+
+    @NonNull
+    static ExceptionData readCacheBinary(@NonNull BinaryCacheReader reader) throws IOException {
+        String message = null;
+        String localizedMessage = null;
+        String exceptionClass = null;
+        List<StackFrame> stackFrames = new ArrayList<>();
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_MESSAGE:
+                    message = reader.readString();
+                    break;
+                case FIELD_LOCALIZED_MESSAGE:
+                    localizedMessage = reader.readString();
+                    break;
+                case FIELD_EXCEPTION_CLASS:
+                    exceptionClass = reader.readString();
+                    break;
+                case FIELD_STACK_FRAME:
+                    stackFrames.add(StackFrame.readCacheBinary(reader));
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        return new ExceptionData(message, localizedMessage, exceptionClass, stackFrames);
+    }
 }
@@ -20,19 +20,25 @@ package com.buglife.crashlife.sdk;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 class Footprint implements Parcelable, JSONCaching {
+    private static final int FIELD_NAME = 1;
+    private static final int FIELD_TIMESTAMP = 2;
+    private static final int FIELD_METADATA = 3;
     private final String mName;
     private final Date mTimeStamp;
     private final AttributeMap mMetadata;
@@ -42,7 +48,7 @@ class Footprint implements Parcelable, JSONCaching {
         mTimeStamp = new Date();
         mMetadata = metadata;
     }
-    private Footprint(String name, AttributeMap metadata, Date timeStamp) {
+    Footprint(String name, AttributeMap metadata, Date timeStamp) {
         mName = name;
         mTimeStamp = timeStamp;
         mMetadata = metadata;
@@ -79,6 +85,36 @@ class Footprint implements Parcelable, JSONCaching {
         }
     };
 
+    String getName() {
+        return mName;
+    }
+
+    Date getTimestamp() {
+        return mTimeStamp;
+    }
+
+    AttributeMap getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * @return Roughly how many bytes this footprint takes up once serialized, metadata included
+     */
+    int getEstimatedSize() {
+        int size = ESTIMATED_OVERHEAD + (mName == null ? 0 : mName.length());
+        for (Map.Entry<String, Attribute> entry : mMetadata.entrySet()) {
+            size += ESTIMATED_METADATA_OVERHEAD + entry.getKey().length();
+            Attribute value = entry.getValue();
+            if (value != null && value.getValue() != null) {
+                size += value.getValue().length();
+            }
+        }
+        return size;
+    }
+    // The keys, quoting and the timestamp that every serialized footprint and metadata entry carries
+    private static final int ESTIMATED_OVERHEAD = 64;
+    private static final int ESTIMATED_METADATA_OVERHEAD = 32;
+
 
     @NonNull
     public synchronized JSONObject toCacheJson() {
@@ -89,9 +125,18 @@ class Footprint implements Parcelable, JSONCaching {
         JsonUtils.safePut(result,"left_at", sdf.format(mTimeStamp));
         return result;
     }
+
+    public synchronized void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        JsonUtils.safeWrite(writer, "name", mName);
+        writer.name("metadata");
+        mMetadata.writeCacheJson(writer);
+        writer.name("left_at").value(sdf.format(mTimeStamp));
+        writer.endObject();
+    }
     private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZ", Locale.US);
     @NonNull
-    private static synchronized Footprint fromCacheJson(JSONObject jsonObject) {
+    static synchronized Footprint fromCacheJson(JSONObject jsonObject) {
         String name;
         String timestampString;
         AttributeMap attributeMap = null;
@@ -136,4 +181,34 @@ class Footprint implements Parcelable, JSONCaching {
         return result;
     }
 
+    void writeCacheBinary(@NonNull BinaryCacheWriter writer) throws IOException {
+        writer.writeString(FIELD_NAME, mName);
+        if (mTimeStamp != null) {
+            writer.writeLong(FIELD_TIMESTAMP, mTimeStamp.getTime());
+        }
+        writer.writeBytes(FIELD_METADATA, mMetadata.toCacheBinary());
+    }
+
+    @NonNull
+    static Footprint readCacheBinary(@NonNull BinaryCacheReader reader) throws IOException {
+        String name = null;
+        Date timestamp = null;
+        AttributeMap metadata = new AttributeMap();
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_NAME:
+                    name = reader.readString();
+                    break;
+                case FIELD_TIMESTAMP:
+                    timestamp = new Date(reader.readLong());
+                    break;
+                case FIELD_METADATA:
+                    metadata = AttributeMap.fromCacheBinary(reader.readBytes());
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        return new Footprint(name, metadata, timestamp);
+    }
 }
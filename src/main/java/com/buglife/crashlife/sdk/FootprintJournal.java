@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of the footprints left during a session.
+ *
+ * Each record is a 4-byte big-endian length followed by the UTF-8 JSON of a single footprint,
+ * so each footprint is encoded and written once no matter how many came before it.
+ * If the process dies halfway through a write, the last record is torn; readers stop there.
+ * Evicted footprints stay in the journal until it's rewritten, which happens once they'd make up
+ * half of it, or after a failed write.
+ * Not thread safe; all writes are expected to come from the persistence thread.
+ */
+final class FootprintJournal {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Anything bigger than this is a torn or corrupt length prefix, not a footprint.
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    @NonNull private final File mFile;
+    @Nullable private OutputStream mOutput;
+    private int mRecordCount;
+    private boolean mNeedsCompaction;
+
+    FootprintJournal(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Brings the journal up to date, appending the new footprints or, if it's time, compacting.
+     * @param footprints The live footprints, oldest first
+     * @param newFootprints Those of them left since the last write
+     */
+    void write(@NonNull List<Footprint> footprints, @NonNull List<Footprint> newFootprints) throws IOException {
+        // A failed write may have left a partial record behind, and anything appended after it would be unreadable
+        if (mNeedsCompaction || mRecordCount + newFootprints.size() >= 2 * Math.max(footprints.size(), 1)) {
+            compact(footprints);
+        } else {
+            append(newFootprints);
+        }
+    }
+
+    /**
+     * Appends the given footprints, oldest first, with a single write.
+     */
+    private void append(@NonNull List<Footprint> footprints) throws IOException {
+        if (footprints.isEmpty()) {
+            return;
+        }
+        byte[] records = encode(footprints);
+        try {
+            if (mOutput == null) {
+                mOutput = new FileOutputStream(mFile, true);
+            }
+            mOutput.write(records);
+        } catch (IOException e) {
+            mNeedsCompaction = true;
+            throw e;
+        }
+        mRecordCount += footprints.size();
+    }
+
+    /**
+     * Rewrites the journal so that it contains exactly the given footprints.
+     * @param footprints The live footprints, oldest first
+     */
+    private void compact(@NonNull List<Footprint> footprints) throws IOException {
+        close();
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(tempFile);
+        try {
+            output.write(encode(footprints));
+            output.flush();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            mNeedsCompaction = true;
+            throw new IOException("Unable to replace footprint journal " + mFile.getName());
+        }
+        mRecordCount = footprints.size();
+        mNeedsCompaction = false;
+    }
+
+    void close() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+            mOutput = null;
+        }
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull List<Footprint> footprints) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (Footprint footprint : footprints) {
+            byte[] payload = footprint.toCacheJson().toString().getBytes(UTF_8);
+            output.writeInt(payload.length);
+            output.write(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads every complete record in the journal. A torn or corrupt record ends the read,
+     * and everything before it is returned.
+     */
+    @NonNull
+    static List<Footprint> read(@NonNull File file) throws IOException {
+        ArrayList<Footprint> footprints = new ArrayList<>();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    Log.w("Footprint journal " + file.getName() + " has a corrupt record; ignoring the rest of it.");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                try {
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    // The process died mid-write. Everything up to here is still good.
+                    break;
+                }
+                try {
+                    footprints.add(Footprint.fromCacheJson(new JSONObject(new String(payload, UTF_8))));
+                } catch (JSONException e) {
+                    Log.w("Footprint journal " + file.getName() + " has a corrupt record; ignoring the rest of it.");
+                    break;
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return footprints;
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the footprints of a session, keeping the most recent ones within a count and a byte limit.
+ *
+ * Each thread records into a ring buffer of its own, so leaving a footprint never waits on another
+ * thread. Every footprint is stamped with a sequence number from a global counter, and the buffers
+ * are only merged into a single, ordered list when one is needed: when an event is built or the
+ * footprints are persisted. Each buffer holds as many footprints as the whole session may keep,
+ * so whatever a buffer has already overwritten would have been evicted anyway.
+ *
+ * The ring holds reusable slots rather than footprints. Footprints left with a few inline
+ * key/value pairs are copied into a slot as is (references, primitives and a timestamp), so once
+ * a thread's ring has filled up, recording allocates nothing. {@link Footprint} objects are built
+ * from the slots only when the footprints are captured, and only for those the capture keeps.
+ *
+ * Buffers outlive their threads, since the footprints a thread left are still worth reporting.
+ * Once a thread has died and none of its footprints are recent enough to keep, its buffer is dropped.
+ */
+final class FootprintRecorder {
+    static final int MAX_INLINE_PAIRS = 3;
+
+    // How inline values are held; see Slot#getPrimitiveValue(int)
+    static final int VALUE_STRING = 0;
+    static final int VALUE_LONG = 1;
+    static final int VALUE_DOUBLE = 2;
+    static final int VALUE_BOOLEAN = 3;
+
+    // Keep these in line with Footprint#getEstimatedSize()
+    private static final int ESTIMATED_OVERHEAD = 64;
+    private static final int ESTIMATED_METADATA_OVERHEAD = 32;
+    private static final int ESTIMATED_DOUBLE_LENGTH = 24;
+
+    /**
+     * One recorded footprint: either inline pairs, or a footprint built by the caller. Slots are
+     * reused, so they're only valid while their buffer's lock is held.
+     */
+    static final class Slot {
+        private long mSequence;
+        private long mTimestamp;
+        @Nullable private String mName;
+        private int mSize;
+        private int mPairCount;
+        @NonNull private final String[] mKeys = new String[MAX_INLINE_PAIRS];
+        @NonNull private final int[] mValueTypes = new int[MAX_INLINE_PAIRS];
+        @NonNull private final String[] mStringValues = new String[MAX_INLINE_PAIRS];
+        @NonNull private final long[] mPrimitiveValues = new long[MAX_INLINE_PAIRS];
+        @Nullable private Footprint mFootprint;
+
+        void reset(@Nullable String name, long timestamp) {
+            mName = name;
+            mTimestamp = timestamp;
+            mPairCount = 0;
+            mFootprint = null;
+            mSize = ESTIMATED_OVERHEAD + (name == null ? 0 : name.length());
+            // Drop references to values of the footprint this slot held before
+            for (int i = 0; i < MAX_INLINE_PAIRS; i++) {
+                mKeys[i] = null;
+                mStringValues[i] = null;
+            }
+        }
+
+        void reset(@NonNull Footprint footprint) {
+            reset(footprint.getName(), footprint.getTimestamp() == null ? 0 : footprint.getTimestamp().getTime());
+            mFootprint = footprint;
+            mSize = footprint.getEstimatedSize();
+        }
+
+        void put(@Nullable String key, int valueType, @Nullable String stringValue, long primitiveValue) {
+            if (key == null) {
+                return;
+            }
+            mKeys[mPairCount] = key;
+            mValueTypes[mPairCount] = valueType;
+            mStringValues[mPairCount] = stringValue;
+            mPrimitiveValues[mPairCount] = primitiveValue;
+            mPairCount++;
+            mSize += ESTIMATED_METADATA_OVERHEAD + key.length() + valueLength(valueType, stringValue, primitiveValue);
+        }
+
+        long getSequence() {
+            return mSequence;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return The estimated size the byte budget is applied to
+         */
+        int getSize() {
+            return mSize;
+        }
+
+        @Nullable
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * @return The footprint as the caller built it, or null if it was left with inline pairs
+         */
+        @Nullable
+        Footprint getFootprint() {
+            return mFootprint;
+        }
+
+        int getPairCount() {
+            return mPairCount;
+        }
+
+        @NonNull
+        String getKey(int i) {
+            return mKeys[i];
+        }
+
+        int getValueType(int i) {
+            return mValueTypes[i];
+        }
+
+        @Nullable
+        String getStringValue(int i) {
+            return mStringValues[i];
+        }
+
+        /**
+         * @return The value as a long, the raw bits of a double, or 1 or 0 for a boolean
+         */
+        long getPrimitiveValue(int i) {
+            return mPrimitiveValues[i];
+        }
+
+        @NonNull
+        Footprint toFootprint() {
+            if (mFootprint != null) {
+                return mFootprint;
+            }
+            AttributeMap metadata = new AttributeMap();
+            for (int i = 0; i < mPairCount; i++) {
+                String value = formatValue(mValueTypes[i], mStringValues[i], mPrimitiveValues[i]);
+                metadata.put(mKeys[i], new Attribute(value, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM));
+            }
+            return new Footprint(mName, metadata, new Date(mTimestamp));
+        }
+    }
+
+    @Nullable
+    static String formatValue(int valueType, @Nullable String stringValue, long primitiveValue) {
+        switch (valueType) {
+            case VALUE_LONG:
+                return Long.toString(primitiveValue);
+            case VALUE_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(primitiveValue));
+            case VALUE_BOOLEAN:
+                return primitiveValue != 0 ? "true" : "false";
+            default:
+                return stringValue;
+        }
+    }
+
+    private static int valueLength(int valueType, @Nullable String stringValue, long primitiveValue) {
+        switch (valueType) {
+            case VALUE_LONG:
+                int length = primitiveValue < 0 ? 2 : 1;
+                for (long remaining = primitiveValue / 10; remaining != 0; remaining /= 10) {
+                    length++;
+                }
+                return length;
+            case VALUE_DOUBLE:
+                return ESTIMATED_DOUBLE_LENGTH;
+            case VALUE_BOOLEAN:
+                return primitiveValue != 0 ? 4 : 5;
+            default:
+                return stringValue == null ? 0 : stringValue.length();
+        }
+    }
+
+    private static final class Entry {
+        final long sequence;
+        @NonNull final Footprint footprint;
+        final int size;
+
+        Entry(long sequence, @NonNull Footprint footprint, int size) {
+            this.sequence = sequence;
+            this.footprint = footprint;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A ring of slots written by a single thread. Its lock is only ever contended by a capture, so
+     * taking it costs the writer next to nothing, and it keeps readers from seeing a half-written slot.
+     */
+    private static final class ThreadBuffer {
+        @NonNull final WeakReference<Thread> mThread;
+        @NonNull final Slot[] mSlots; // Filled in as the ring first wraps around
+        // Where the next footprint is written before it's known to fit; swapped into the ring if it does
+        @NonNull Slot mSpare = new Slot();
+        long mCount;
+
+        ThreadBuffer(@NonNull Thread thread, int capacity) {
+            mThread = new WeakReference<>(thread);
+            mSlots = new Slot[capacity];
+        }
+
+        void commitSpare() {
+            int index = (int) (mCount % mSlots.length);
+            Slot evicted = mSlots[index];
+            mSlots[index] = mSpare;
+            mSpare = evicted == null ? new Slot() : evicted;
+            mCount++;
+        }
+
+        /**
+         * Offers the sequence number and size of each footprint up to maxSequence to the heap, newest
+         * first, until the heap has no room for one.
+         */
+        void offer(@NonNull NewestFootprints newest, long maxSequence) {
+            for (long i = mCount - 1; i >= Math.max(0, mCount - mSlots.length); i--) {
+                Slot slot = mSlots[(int) (i % mSlots.length)];
+                // The rest of the ring is older still
+                if (slot.mSequence <= maxSequence && !newest.offer(slot.mSequence, slot.mSize)) {
+                    return;
+                }
+            }
+        }
+
+        void collect(@NonNull List<Entry> out, long minSequence, long maxSequence) {
+            for (long i = Math.max(0, mCount - mSlots.length); i < mCount; i++) {
+                Slot slot = mSlots[(int) (i % mSlots.length)];
+                if (slot.mSequence >= minSequence && slot.mSequence <= maxSequence) {
+                    out.add(new Entry(slot.mSequence, slot.toFootprint(), slot.mSize));
+                }
+            }
+        }
+
+        long newestSequence() {
+            return mCount == 0 ? 0 : mSlots[(int) ((mCount - 1) % mSlots.length)].mSequence;
+        }
+
+        boolean isAbandoned() {
+            Thread thread = mThread.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    /**
+     * A min-heap of the newest footprints offered to it, by sequence number, with their sizes. Lets a
+     * capture find which footprints it keeps before building any of them.
+     */
+    private static final class NewestFootprints {
+        @NonNull private final long[] mSequences;
+        @NonNull private final int[] mSizes;
+        private int mCount;
+
+        NewestFootprints(int capacity) {
+            mSequences = new long[capacity];
+            mSizes = new int[capacity];
+        }
+
+        /**
+         * @return Whether the footprint is among the newest so far
+         */
+        boolean offer(long sequence, int size) {
+            if (mCount < mSequences.length) {
+                mSequences[mCount] = sequence;
+                mSizes[mCount] = size;
+                siftUp(mCount++);
+                return true;
+            }
+            if (mCount == 0 || sequence <= mSequences[0]) {
+                return false;
+            }
+            mSequences[0] = sequence;
+            mSizes[0] = size;
+            siftDown(0);
+            return true;
+        }
+
+        /**
+         * Empties the heap, newest last, and applies the byte limit from the newest footprint back.
+         * @return The sequence number of the oldest footprint that fits, or Long.MAX_VALUE if none does
+         */
+        long oldestWithin(long maxBytes) {
+            int count = mCount;
+            // Popping the minimum into the slot the heap just gave up sorts the arrays newest first
+            while (mCount > 1) {
+                swap(0, --mCount);
+                siftDown(0);
+            }
+            mCount = 0;
+            long oldest = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int i = 0; i < count; i++) {
+                bytes += mSizes[i];
+                if (bytes > maxBytes) {
+                    break;
+                }
+                oldest = mSequences[i];
+            }
+            return oldest;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && mSequences[(i - 1) / 2] > mSequences[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < mCount; child++) {
+                    if (mSequences[child] < mSequences[smallest]) {
+                        smallest = child;
+                    }
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long sequence = mSequences[i];
+            mSequences[i] = mSequences[j];
+            mSequences[j] = sequence;
+            int size = mSizes[i];
+            mSizes[i] = mSizes[j];
+            mSizes[j] = size;
+        }
+    }
+
+    /**
+     * The merged footprints, as of the moment they were captured.
+     */
+    static final class Capture {
+        @NonNull private final List<Entry> mEntries;
+        private final long mLastSequence;
+
+        private Capture(@NonNull List<Entry> entries, long lastSequence) {
+            mEntries = entries;
+            mLastSequence = lastSequence;
+        }
+
+        /**
+         * @return The footprints, oldest first
+         */
+        @NonNull
+        List<Footprint> getFootprints() {
+            return getFootprintsAfter(0);
+        }
+
+        /**
+         * @return The footprints recorded after the given sequence number, oldest first
+         */
+        @NonNull
+        List<Footprint> getFootprintsAfter(long sequence) {
+            ArrayList<Footprint> footprints = new ArrayList<>(mEntries.size());
+            for (Entry entry : mEntries) {
+                if (entry.sequence > sequence) {
+                    footprints.add(entry.footprint);
+                }
+            }
+            return footprints;
+        }
+
+        /**
+         * @return The sequence number of the last footprint recorded before the capture
+         */
+        long getLastSequence() {
+            return mLastSequence;
+        }
+
+        /**
+         * @return How many footprints have been evicted (or were too big to keep) as of the capture
+         */
+        long getDroppedCount() {
+            return mLastSequence - mEntries.size();
+        }
+    }
+
+    private static final Comparator<Entry> SEQUENCE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final int mMaxCount;
+    private final long mMaxBytes;
+    // Gets a copy of every footprint as it's recorded, even those too big to keep
+    @Nullable private final CrashContextArena mMirror;
+    @NonNull private final AtomicLong mSequence = new AtomicLong();
+    @NonNull private final CopyOnWriteArrayList<ThreadBuffer> mBuffers = new CopyOnWriteArrayList<>();
+    @NonNull private final ThreadLocal<ThreadBuffer> mThreadBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread(), mMaxCount);
+            mBuffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    FootprintRecorder(int maxCount, long maxBytes, @Nullable CrashContextArena mirror) {
+        mMaxCount = maxCount;
+        mMaxBytes = maxBytes;
+        mMirror = mirror;
+    }
+
+    void record(@NonNull Footprint footprint) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            buffer.mSpare.reset(footprint);
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            buffer.mSpare.reset(name, System.currentTimeMillis());
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key, @Nullable String value) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key, VALUE_STRING, value, 0);
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key, long value) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key, VALUE_LONG, null, value);
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key, double value) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key, VALUE_DOUBLE, null, Double.doubleToRawLongBits(value));
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key, boolean value) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key, VALUE_BOOLEAN, null, value ? 1 : 0);
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key1, @Nullable String value1, @Nullable String key2, @Nullable String value2) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key1, VALUE_STRING, value1, 0);
+            slot.put(key2, VALUE_STRING, value2, 0);
+            commit(buffer);
+        }
+    }
+
+    void record(@Nullable String name, @Nullable String key1, @Nullable String value1, @Nullable String key2, @Nullable String value2,
+                @Nullable String key3, @Nullable String value3) {
+        ThreadBuffer buffer = mThreadBuffer.get();
+        synchronized (buffer) {
+            Slot slot = buffer.mSpare;
+            slot.reset(name, System.currentTimeMillis());
+            slot.put(key1, VALUE_STRING, value1, 0);
+            slot.put(key2, VALUE_STRING, value2, 0);
+            slot.put(key3, VALUE_STRING, value3, 0);
+            commit(buffer);
+        }
+    }
+
+    // Numbers the footprint in the buffer's spare slot, and keeps it if it fits. Called with the buffer's lock held.
+    private void commit(@NonNull ThreadBuffer buffer) {
+        Slot slot = buffer.mSpare;
+        // Taken under the buffer's lock, so a capture that has seen this number also sees the footprint
+        slot.mSequence = mSequence.incrementAndGet();
+        if (mMirror != null) {
+            mMirror.appendFootprint(slot);
+        }
+        if (mMaxCount > 0 && slot.mSize <= mMaxBytes) {
+            buffer.commitSpare();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last footprint recorded so far, to capture up to later
+     */
+    long getLastSequence() {
+        return mSequence.get();
+    }
+
+    /**
+     * Merges the footprints of every thread, and applies the count and byte limits to the result.
+     * Everything numbered before the capture is in it; footprints recorded while this runs are left out.
+     */
+    @NonNull
+    Capture capture() {
+        return capture(mSequence.get());
+    }
+
+    /**
+     * Captures the footprints as of an earlier {@link #getLastSequence()}, leaving out any recorded since.
+     * Whatever the rings have overwritten in the meantime is counted as dropped.
+     */
+    @NonNull
+    Capture capture(long lastSequence) {
+        // First find which footprints are kept, by sequence number and size alone: the newest, up to the
+        // count limit, and then as many of those as fit the byte limit, newest first
+        NewestFootprints newest = new NewestFootprints(mMaxCount);
+        for (ThreadBuffer buffer : mBuffers) {
+            synchronized (buffer) {
+                buffer.offer(newest, lastSequence);
+            }
+        }
+        long oldestKept = newest.oldestWithin(mMaxBytes);
+
+        // Then build only those. Any a ring has overwritten since were due to be evicted anyway, and are dropped.
+        ArrayList<Entry> kept = new ArrayList<>();
+        if (oldestKept <= lastSequence) {
+            for (ThreadBuffer buffer : mBuffers) {
+                synchronized (buffer) {
+                    buffer.collect(kept, oldestKept, lastSequence);
+                }
+            }
+            Collections.sort(kept, SEQUENCE_ORDER);
+        }
+
+        oldestKept = kept.isEmpty() ? lastSequence + 1 : kept.get(0).sequence;
+        for (ThreadBuffer buffer : mBuffers) {
+            if (buffer.isAbandoned()) {
+                synchronized (buffer) {
+                    if (buffer.newestSequence() < oldestKept) {
+                        mBuffers.remove(buffer);
+                    }
+                }
+            }
+        }
+        return new Capture(kept, lastSequence);
+    }
+}
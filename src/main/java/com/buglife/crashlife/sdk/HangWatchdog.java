@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches the main thread for hangs.
+ *
+ * A thread of its own posts a tick to the main looper and sleeps for the threshold; if the tick
+ * hasn't run by the time it wakes, the main thread is hung. While the app is healthy, that's all it
+ * does: one post and one wakeup per threshold. A hang is detected between one and two thresholds in.
+ *
+ * Once hung, the main thread's stack is sampled at intervals until it recovers, or until enough
+ * samples are in, and the samples are handed to the listener. Each hang is reported once, and
+ * hangs while a debugger is attached aren't reported at all, since breakpoints look just like them.
+ */
+final class HangWatchdog implements Runnable {
+    // Left out of thread dumps, like Crashlife's other threads
+    static final String THREAD_NAME = "com.buglife.crashlife.watchdog";
+    private static final int MAX_SAMPLES = 25;
+    private static final int MAX_HOT_FRAMES = 10;
+
+    interface Listener {
+        /**
+         * Called on the watchdog's thread.
+         */
+        void onHang(@NonNull Hang hang);
+    }
+
+    /**
+     * The samples of one hang, aggregated.
+     */
+    static final class Hang {
+        private final long mDurationMillis;
+        private final boolean mRecovered;
+        private final int mSampleCount;
+        @NonNull private final StackTraceElement[] mHottestStack;
+        @NonNull private final List<Map.Entry<StackTraceElement, Integer>> mHotFrames;
+
+        private Hang(long durationMillis, boolean recovered, int sampleCount, @NonNull StackTraceElement[] hottestStack,
+                     @NonNull List<Map.Entry<StackTraceElement, Integer>> hotFrames) {
+            mDurationMillis = durationMillis;
+            mRecovered = recovered;
+            mSampleCount = sampleCount;
+            mHottestStack = hottestStack;
+            mHotFrames = hotFrames;
+        }
+
+        /**
+         * @return How long the main thread was hung for; if it hadn't recovered, how long it had been so far
+         */
+        long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        boolean isRecovered() {
+            return mRecovered;
+        }
+
+        int getSampleCount() {
+            return mSampleCount;
+        }
+
+        /**
+         * @return The stack the main thread was sampled in most often
+         */
+        @NonNull
+        StackTraceElement[] getHottestStack() {
+            return mHottestStack;
+        }
+
+        /**
+         * @return The frames that were on the most samples, with how many samples each was on; most first
+         */
+        @NonNull
+        List<Map.Entry<StackTraceElement, Integer>> getHotFrames() {
+            return mHotFrames;
+        }
+    }
+
+    @NonNull private final Thread mMainThread;
+    @NonNull private final Handler mMainHandler;
+    private final long mThresholdMillis;
+    private final long mSampleIntervalMillis;
+    @NonNull private final Listener mListener;
+    // Only the main thread writes it, and only the watchdog reads it
+    private volatile long mServicedTicks;
+    private long mPostedTicks;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mServicedTicks++;
+        }
+    };
+
+    HangWatchdog(@NonNull Looper mainLooper, long thresholdMillis, long sampleIntervalMillis, @NonNull Listener listener) {
+        mMainThread = mainLooper.getThread();
+        mMainHandler = new Handler(mainLooper);
+        mThresholdMillis = thresholdMillis;
+        mSampleIntervalMillis = sampleIntervalMillis;
+        mListener = listener;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                long tick = ++mPostedTicks;
+                long postedAt = SystemClock.uptimeMillis();
+                mMainHandler.post(mTick);
+                Thread.sleep(mThresholdMillis);
+                if (mServicedTicks >= tick) {
+                    continue;
+                }
+                if (!Debug.isDebuggerConnected()) {
+                    Hang hang = sample(tick, postedAt);
+                    // It may have just recovered before the first sample
+                    if (hang.getSampleCount() > 0) {
+                        mListener.onHang(hang);
+                    }
+                }
+                while (mServicedTicks < tick) {
+                    Thread.sleep(mSampleIntervalMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    @NonNull
+    private Hang sample(long tick, long postedAt) throws InterruptedException {
+        List<StackTraceElement[]> samples = new ArrayList<>();
+        while (mServicedTicks < tick && samples.size() < MAX_SAMPLES) {
+            samples.add(mMainThread.getStackTrace());
+            Thread.sleep(mSampleIntervalMillis);
+        }
+        boolean recovered = mServicedTicks >= tick;
+        long durationMillis = SystemClock.uptimeMillis() - postedAt;
+
+        HashMap<List<StackTraceElement>, Integer> stackCounts = new HashMap<>();
+        // Per frame, the samples it was on, and the nearest to the top of the stack it was on any
+        final HashMap<StackTraceElement, int[]> frameCounts = new HashMap<>();
+        StackTraceElement[] hottestStack = new StackTraceElement[0];
+        int hottestCount = 0;
+        for (StackTraceElement[] sample : samples) {
+            List<StackTraceElement> stack = Arrays.asList(sample);
+            Integer count = stackCounts.get(stack);
+            count = count == null ? 1 : count + 1;
+            stackCounts.put(stack, count);
+            if (count > hottestCount) {
+                hottestCount = count;
+                hottestStack = sample;
+            }
+            // A frame counts once per sample, however deep it recursed
+            HashSet<StackTraceElement> seen = new HashSet<>();
+            for (int depth = 0; depth < sample.length; depth++) {
+                StackTraceElement frame = sample[depth];
+                if (!seen.add(frame)) {
+                    continue;
+                }
+                int[] frameCount = frameCounts.get(frame);
+                if (frameCount == null) {
+                    frameCounts.put(frame, new int[] {1, depth});
+                } else {
+                    frameCount[0]++;
+                    frameCount[1] = Math.min(frameCount[1], depth);
+                }
+            }
+        }
+        List<StackTraceElement> frames = new ArrayList<>(frameCounts.keySet());
+        // The looper's own frames are on every sample, so among frames on as many samples, those nearest the top say the most
+        Collections.sort(frames, new Comparator<StackTraceElement>() {
+            @Override
+            public int compare(StackTraceElement lhs, StackTraceElement rhs) {
+                int[] lhsCount = frameCounts.get(lhs);
+                int[] rhsCount = frameCounts.get(rhs);
+                return lhsCount[0] != rhsCount[0] ? rhsCount[0] - lhsCount[0] : lhsCount[1] - rhsCount[1];
+            }
+        });
+        List<Map.Entry<StackTraceElement, Integer>> hotFrames = new ArrayList<>();
+        for (int i = 0; i < frames.size() && i < MAX_HOT_FRAMES; i++) {
+            hotFrames.add(new AbstractMap.SimpleImmutableEntry<>(frames.get(i), frameCounts.get(frames.get(i))[0]));
+        }
+        return new Hang(durationMillis, recovered, samples.size(), hottestStack, hotFrames);
+    }
+}
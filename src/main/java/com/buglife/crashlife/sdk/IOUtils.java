@@ -54,6 +54,18 @@ class IOUtils {
         }
     }
 
+    static byte[] readBytesFromFile(File file) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+        FileInputStream input = new FileInputStream(file);
+        try {
+            write(input, output);
+            return output.toByteArray();
+        } finally {
+            closeQuietly(output);
+            closeQuietly(input);
+        }
+    }
+
     private static void deleteRecursively(File fileOrDirectory) {
         if (fileOrDirectory.isDirectory()) {
             for (File child : fileOrDirectory.listFiles()) {
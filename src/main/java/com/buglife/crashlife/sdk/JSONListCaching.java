@@ -18,10 +18,18 @@
 package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
+import android.util.JsonWriter;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 interface JSONCaching {
     @NonNull
     JSONObject toCacheJson();
+
+    /**
+     * Writes the same JSON as {@link #toCacheJson()}, without building the tree first.
+     */
+    void writeCacheJson(@NonNull JsonWriter writer) throws IOException;
 }
\ No newline at end of file
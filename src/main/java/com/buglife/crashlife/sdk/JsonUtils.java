@@ -17,10 +17,13 @@
 
 package com.buglife.crashlife.sdk;
 
+import android.util.JsonWriter;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
@@ -219,4 +222,49 @@ final class JsonUtils {
         return result;
 
     }
+
+    // Streaming counterparts of the above; like safePut, null strings are left out entirely.
+
+    static void safeWrite(JsonWriter writer, String key, String val) throws IOException {
+        if (val == null) { return; }
+        writer.name(key).value(val);
+    }
+
+    static void writeCacheJsonList(JsonWriter writer, List<? extends JSONCaching> objects) throws IOException {
+        writer.beginArray();
+        for (JSONCaching cachingObj : objects) {
+            cachingObj.writeCacheJson(writer);
+        }
+        writer.endArray();
+    }
+
+    // For the small, already-built trees that go out alongside streamed objects, such as the session snapshot.
+    static void writeJson(JsonWriter writer, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> itr = jsonObject.keys();
+            while (itr.hasNext()) {
+                String key = itr.next();
+                writer.name(key);
+                writeJson(writer, jsonObject.opt(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < jsonArray.length(); i++) {
+                writeJson(writer, jsonArray.opt(i));
+            }
+            writer.endArray();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A native crash report and everything attached to it, packed into a single file.
+ *
+ * The tombstone is written by the crash handler, and the attributes, footprints and session of the
+ * crashed process are left behind in their own state files. The crash service packs all of those
+ * into one container, so that the report cache reads, sends and deletes each native crash as one file.
+ *
+ * Layout (big-endian):
+ *   header    magic, version, crash timestamp
+ *   sections  type, length, payload; written one after another as they are gathered
+ *   index     type, offset and length of each section
+ *   trailer   section count, index offset, magic
+ *
+ * Containers are written under a temporary name and renamed once complete, so a container that
+ * exists is whole. Readers skip section types they don't know.
+ */
+final class NativeCrashContainer {
+    static final String EXTENSION = ".crash";
+    static final String TEMP_SUFFIX = EXTENSION + ".tmp";
+    static final String TOMBSTONE_EXTENSION = ".txt";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x434c4e43; // "CLNC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int TRAILER_SIZE = 4 + 8 + 4;
+    private static final int INDEX_ENTRY_SIZE = 4 + 8 + 4;
+    // Anything bigger than this is corrupt, not a section
+    private static final int MAX_SECTION_LENGTH = 16 * 1024 * 1024;
+
+    private static final int SECTION_TOMBSTONE = 1;
+    private static final int SECTION_ATTRIBUTES = 2;
+    private static final int SECTION_FOOTPRINTS = 3;
+    private static final int SECTION_SNAPSHOTS = 4;
+    private static final int SECTION_SESSION = 5;
+    private static final int SECTION_LIB_FILE_IDS = 6;
+
+    // Fields of the footprints section
+    private static final int FIELD_DROPPED_FOOTPRINT_COUNT = 1;
+    private static final int FIELD_FOOTPRINT = 2;
+
+    private static final String ENVIRONMENT_SNAPSHOT = "environment_snapshot";
+    private static final String DEVICE_SNAPSHOT = "device_snapshot";
+    static final String LIB_FILE_IDS = "lib_file_ids";
+
+    private NativeCrashContainer() {/* No instances */}
+
+    /**
+     * The contents of a container, as read back by the report cache.
+     */
+    static final class Contents {
+        @NonNull final String tombstone;
+        @NonNull final AttributeMap attributes;
+        @NonNull final List<Footprint> footprints;
+        final long droppedFootprintCount;
+        @Nullable final JSONObject snapshots;
+        @Nullable final JSONObject session;
+        @Nullable final JSONArray libFileIds;
+        final long timestamp;
+
+        private Contents(@NonNull String tombstone, @NonNull AttributeMap attributes, @NonNull List<Footprint> footprints,
+                         long droppedFootprintCount, @Nullable JSONObject snapshots, @Nullable JSONObject session,
+                         @Nullable JSONArray libFileIds, long timestamp) {
+            this.tombstone = tombstone;
+            this.attributes = attributes;
+            this.footprints = footprints;
+            this.droppedFootprintCount = droppedFootprintCount;
+            this.snapshots = snapshots;
+            this.session = session;
+            this.libFileIds = libFileIds;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Packs the tombstone <uuid>.txt and the state files of its session into <uuid>.crash, then deletes them.
+     * @param snapshots The environment and device snapshots taken by the crash service, or null to read
+     *                  them from the snapshots file an earlier attempt left behind
+     * @return The container
+     */
+    @NonNull
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static File pack(@NonNull File directory, @NonNull String uuid, @Nullable JSONObject snapshots, @Nullable JSONArray libFileIds) throws IOException {
+        File tombstoneFile = new File(directory, uuid + TOMBSTONE_EXTENSION);
+        long timestamp = tombstoneFile.lastModified();
+        byte[] tombstone = IOUtils.readBytesFromFile(tombstoneFile);
+
+        if (snapshots == null) {
+            File snapshotsFile = new File(directory, uuid + ReportCache.SNAPSHOTS_FILE_SUFFIX);
+            if (snapshotsFile.exists()) {
+                try {
+                    snapshots = new JSONObject(IOUtils.readStringFromFile(snapshotsFile));
+                    libFileIds = snapshots.optJSONArray(LIB_FILE_IDS);
+                    snapshots.remove(LIB_FILE_IDS);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        File tempFile = new File(directory, uuid + TEMP_SUFFIX);
+        FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        List<long[]> index = new ArrayList<>();
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(timestamp);
+            writeSection(output, index, SECTION_TOMBSTONE, tombstone);
+            writeSessionState(output, index, directory, uuid);
+            if (snapshots != null) {
+                writeSection(output, index, SECTION_SNAPSHOTS, snapshots.toString().getBytes(UTF_8));
+            }
+            File sessionFile = new File(directory, uuid + ReportCache.SESSION_FILE_SUFFIX);
+            if (sessionFile.exists()) {
+                writeSection(output, index, SECTION_SESSION, IOUtils.readBytesFromFile(sessionFile));
+            }
+            if (libFileIds != null) {
+                writeSection(output, index, SECTION_LIB_FILE_IDS, libFileIds.toString().getBytes(UTF_8));
+            }
+
+            long indexOffset = output.size();
+            for (long[] section : index) {
+                output.writeInt((int) section[0]);
+                output.writeLong(section[1]);
+                output.writeInt((int) section[2]);
+            }
+            output.writeInt(index.size());
+            output.writeLong(indexOffset);
+            output.writeInt(MAGIC);
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        File container = new File(directory, uuid + EXTENSION);
+        if (!tempFile.renameTo(container)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + container.getName());
+        }
+        // The manifest dates native reports by their file, and this one should carry the time of the crash
+        container.setLastModified(timestamp);
+
+        tombstoneFile.delete();
+        for (String suffix : ReportCache.SESSION_FILE_SUFFIXES) {
+            File file = new File(directory, uuid + suffix);
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+        return container;
+    }
+
+    /**
+     * Writes the attributes and footprints of the crashed session. The crash context arena is current as of
+     * the crash; the JSON and journal files are only written if it couldn't be mapped, or by older versions of the SDK.
+     */
+    private static void writeSessionState(@NonNull DataOutputStream output, @NonNull List<long[]> index,
+                                          @NonNull File directory, @NonNull String uuid) throws IOException {
+        AttributeMap attributes = null;
+        List<Footprint> footprints = null;
+        long droppedFootprintCount = 0;
+        File arenaFile = new File(directory, uuid + ReportCache.CONTEXT_ARENA_SUFFIX);
+        if (arenaFile.exists()) {
+            try {
+                CrashContextArena.Contents contents = CrashContextArena.read(arenaFile);
+                attributes = contents.attributes;
+                footprints = contents.footprints;
+                droppedFootprintCount = contents.droppedFootprintCount;
+            } catch (Exception e) {
+                Log.w("Unable to read Crashlife crash context for " + uuid + ", falling back to state files.");
+                e.printStackTrace();
+            }
+        }
+
+        if (attributes == null) {
+            File attributesFile = new File(directory, uuid + ReportCache.ATTRIBUTES_FILE_SUFFIX);
+            try {
+                attributes = AttributeMap.fromCacheJson(new JSONArray(IOUtils.readStringFromFile(attributesFile)));
+            } catch (Exception e) {
+                // There may not be any attributes, so don't scream about it.
+                attributes = new AttributeMap();
+            }
+        }
+
+        if (footprints == null) {
+            File footprintsJournalFile = new File(directory, uuid + ReportCache.FOOTPRINTS_JOURNAL_SUFFIX);
+            File footprintsFile = new File(directory, uuid + ReportCache.FOOTPRINTS_FILE_SUFFIX);
+            try {
+                if (footprintsJournalFile.exists()) {
+                    footprints = FootprintJournal.read(footprintsJournalFile);
+                } else {
+                    footprints = Footprint.listFromCacheJson(new JSONArray(IOUtils.readStringFromFile(footprintsFile)));
+                }
+            } catch (Exception e) {
+                // There may not be any footprints either.
+                footprints = new ArrayList<>();
+            }
+        }
+
+        writeSection(output, index, SECTION_ATTRIBUTES, attributes.toCacheBinary());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCacheWriter writer = new BinaryCacheWriter(bytes);
+        writer.writeLong(FIELD_DROPPED_FOOTPRINT_COUNT, droppedFootprintCount);
+        for (Footprint footprint : footprints) {
+            writer.beginObject(FIELD_FOOTPRINT);
+            footprint.writeCacheBinary(writer);
+            writer.endObject();
+        }
+        writer.endObject();
+        writeSection(output, index, SECTION_FOOTPRINTS, bytes.toByteArray());
+    }
+
+    private static void writeSection(@NonNull DataOutputStream output, @NonNull List<long[]> index, int type, @NonNull byte[] payload) throws IOException {
+        output.writeInt(type);
+        output.writeInt(payload.length);
+        index.add(new long[] {type, output.size(), payload.length});
+        output.write(payload);
+    }
+
+    @NonNull
+    static Contents read(@NonNull File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            long length = input.length();
+            if (length < HEADER_SIZE + TRAILER_SIZE || input.readInt() != MAGIC) {
+                throw new IOException("Not a native crash container: " + file.getName());
+            }
+            int version = input.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported native crash container version " + version);
+            }
+            long timestamp = input.readLong();
+
+            input.seek(length - TRAILER_SIZE);
+            int sectionCount = input.readInt();
+            long indexOffset = input.readLong();
+            if (input.readInt() != MAGIC || sectionCount < 0 || indexOffset < HEADER_SIZE
+                    || indexOffset + (long) sectionCount * INDEX_ENTRY_SIZE != length - TRAILER_SIZE) {
+                throw new IOException("Corrupt native crash container index: " + file.getName());
+            }
+
+            String tombstone = null;
+            AttributeMap attributes = new AttributeMap();
+            List<Footprint> footprints = new ArrayList<>();
+            long droppedFootprintCount = 0;
+            JSONObject snapshots = null;
+            JSONObject session = null;
+            JSONArray libFileIds = null;
+            for (int i = 0; i < sectionCount; i++) {
+                input.seek(indexOffset + (long) i * INDEX_ENTRY_SIZE);
+                int type = input.readInt();
+                long offset = input.readLong();
+                int sectionLength = input.readInt();
+                if (offset < HEADER_SIZE || sectionLength < 0 || sectionLength > MAX_SECTION_LENGTH || offset + sectionLength > indexOffset) {
+                    throw new IOException("Corrupt native crash container section: " + file.getName());
+                }
+                byte[] payload = new byte[sectionLength];
+                input.seek(offset);
+                input.readFully(payload);
+                try {
+                    switch (type) {
+                        case SECTION_TOMBSTONE:
+                            tombstone = new String(payload, UTF_8);
+                            break;
+                        case SECTION_ATTRIBUTES:
+                            attributes = AttributeMap.fromCacheBinary(payload);
+                            break;
+                        case SECTION_FOOTPRINTS:
+                            BinaryCacheReader reader = new BinaryCacheReader(new ByteArrayInputStream(payload));
+                            for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+                                switch (BinaryCacheReader.fieldNumber(tag)) {
+                                    case FIELD_DROPPED_FOOTPRINT_COUNT:
+                                        droppedFootprintCount = reader.readLong();
+                                        break;
+                                    case FIELD_FOOTPRINT:
+                                        footprints.add(Footprint.readCacheBinary(reader));
+                                        break;
+                                    default:
+                                        reader.skip(tag);
+                                }
+                            }
+                            break;
+                        case SECTION_SNAPSHOTS:
+                            snapshots = new JSONObject(new String(payload, UTF_8));
+                            break;
+                        case SECTION_SESSION:
+                            session = new JSONObject(new String(payload, UTF_8));
+                            break;
+                        case SECTION_LIB_FILE_IDS:
+                            libFileIds = new JSONArray(new String(payload, UTF_8));
+                            break;
+                        default:
+                            // Written by a newer version of the SDK
+                            break;
+                    }
+                } catch (JSONException e) {
+                    // Everything but the tombstone is nice to have; send what's readable
+                    Log.w("Native crash container " + file.getName() + " has an unreadable section " + type, e);
+                }
+            }
+            if (tombstone == null) {
+                throw new IOException("Native crash container has no tombstone: " + file.getName());
+            }
+            return new Contents(tombstone, attributes, footprints, droppedFootprintCount, snapshots, session, libFileIds, timestamp);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return The environment and device snapshots, keyed as in the snapshots section
+     */
+    @NonNull
+    static JSONObject snapshots(@NonNull EnvironmentSnapshot environmentSnapshot, @NonNull DeviceSnapshot deviceSnapshot) {
+        JSONObject snapshots = new JSONObject();
+        JsonUtils.safePut(snapshots, ENVIRONMENT_SNAPSHOT, environmentSnapshot.toCacheJson());
+        JsonUtils.safePut(snapshots, DEVICE_SNAPSHOT, deviceSnapshot.toCacheJson());
+        return snapshots;
+    }
+
+    @Nullable
+    static JSONObject environmentSnapshot(@NonNull Contents contents) {
+        return contents.snapshots == null ? null : contents.snapshots.optJSONObject(ENVIRONMENT_SNAPSHOT);
+    }
+
+    @Nullable
+    static JSONObject deviceSnapshot(@NonNull Contents contents) {
+        return contents.snapshots == null ? null : contents.snapshots.optJSONObject(DEVICE_SNAPSHOT);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reports crashes caused by an {@link OutOfMemoryError} without needing memory the process doesn't have.
+ *
+ * A ballast array is held for the life of the process and let go of when such a crash comes in,
+ * which leaves some room for the rest of the crash handler. The report itself is streamed into a
+ * buffer allocated up front: a tombstone with the memory figures and the crashing throwable's
+ * frames, written as text to a file opened up front too, and renamed into place as
+ * {@code <uuid>.txt} once complete. Only letting go of the ballast happens on the crashing thread;
+ * the report is written on the crash handler's own thread, so that a stalled system query or disk
+ * counts against the handler's deadline. From there it travels like a native crash: the next launch
+ * packs it with the attributes and footprints of the session it came from.
+ *
+ * Building the tombstone allocates nothing beyond what the throwable's accessors do. Reports that
+ * don't fit in the buffer are cut short.
+ */
+final class OutOfMemoryReporter {
+    // Enough for the crash handler's usual report, whose thread dump is the bulk of it
+    private static final int BALLAST_BYTES = 512 * 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_CAUSES = 8;
+    private static final int MAX_FRAMES_PER_THROWABLE = 256;
+    private static final byte[] TRUNCATED = "\n[truncated]\n".getBytes();
+
+    @NonNull private final Context mContext;
+    @NonNull private final File mTempFile;
+    @NonNull private final File mTombstoneFile;
+    @NonNull private final byte[] mBuffer = new byte[BUFFER_BYTES];
+    // Null if the file couldn't be opened, in which case OOM crashes are only reported the usual way
+    @Nullable private final FileOutputStream mOutput;
+    @Nullable private volatile byte[] mBallast = new byte[BALLAST_BYTES];
+    private int mLength;
+    // As of the crash, taken before the ballast goes
+    private long mHeapMax;
+    private long mHeapTotal;
+    private long mHeapFree;
+
+    OutOfMemoryReporter(@NonNull Context context, @NonNull File directory, @NonNull String uuid) {
+        mContext = context;
+        mTempFile = new File(directory, uuid + ReportCache.OUT_OF_MEMORY_REPORT_SUFFIX);
+        mTombstoneFile = new File(directory, uuid + NativeCrashContainer.TOMBSTONE_EXTENSION);
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(mTempFile);
+        } catch (IOException e) {
+            Log.w("Unable to open Crashlife out of memory report", e);
+        }
+        mOutput = output;
+    }
+
+    static boolean isOutOfMemory(@Nullable Throwable throwable) {
+        for (int i = 0; throwable != null && i <= MAX_CAUSES; i++, throwable = throwable.getCause()) {
+            if (throwable instanceof OutOfMemoryError) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the heap figures and lets go of the ballast. Called once, on the crashing thread; makes
+     * no system calls beyond what reading the heap figures takes, so it can't stall.
+     */
+    synchronized void releaseBallast() {
+        Runtime runtime = Runtime.getRuntime();
+        mHeapMax = runtime.maxMemory();
+        mHeapTotal = runtime.totalMemory();
+        mHeapFree = runtime.freeMemory();
+        mBallast = null;
+    }
+
+    /**
+     * Writes the report, once the ballast is gone. Called once, off the crashing thread, since it
+     * queries the system and syncs the file.
+     * @return Whether the report was written
+     */
+    synchronized boolean report(@NonNull Thread thread, @NonNull Throwable throwable) {
+        ActivityManager.MemoryInfo memoryInfo = null;
+        try {
+            memoryInfo = EnvironmentUtils.getMemoryInfo(mContext);
+        } catch (Throwable e) {
+            // Not even this much memory, or no activity manager; the heap figures will have to do
+        }
+
+        if (mOutput == null) {
+            return false;
+        }
+        mLength = 0;
+        append("Crashlife out of memory report\n");
+        appendField("thread", thread.getName());
+        appendField("thread_id", thread.getId());
+        appendField("heap_max_bytes", mHeapMax);
+        appendField("heap_total_bytes", mHeapTotal);
+        appendField("heap_free_bytes", mHeapFree);
+        if (memoryInfo != null) {
+            appendField("free_memory_bytes", memoryInfo.availMem);
+            appendField("total_memory_bytes", memoryInfo.totalMem);
+            appendField("low_memory_threshold_bytes", memoryInfo.threshold);
+            appendField("low_memory", memoryInfo.lowMemory ? "true" : "false");
+        }
+        append("\n");
+        Throwable current = throwable;
+        for (int i = 0; current != null && i <= MAX_CAUSES; i++, current = current.getCause()) {
+            if (i > 0) {
+                append("Caused by: ");
+            }
+            appendThrowable(current);
+        }
+        if (mLength == mBuffer.length) {
+            System.arraycopy(TRUNCATED, 0, mBuffer, mBuffer.length - TRUNCATED.length, TRUNCATED.length);
+        }
+
+        try {
+            mOutput.write(mBuffer, 0, mLength);
+            mOutput.getFD().sync();
+            mOutput.close();
+        } catch (IOException e) {
+            return false;
+        }
+        return mTempFile.renameTo(mTombstoneFile);
+    }
+
+    /**
+     * Withdraws a report written by {@link #report(Thread, Throwable)}, once the crash was reported the usual way after all.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void discard() {
+        mTombstoneFile.delete();
+    }
+
+    private void appendThrowable(@NonNull Throwable throwable) {
+        append(throwable.getClass().getName());
+        String message = throwable.getMessage();
+        if (message != null) {
+            append(": ");
+            append(message);
+        }
+        append("\n");
+        StackTraceElement[] stack = throwable.getStackTrace();
+        for (int i = 0; i < stack.length && i < MAX_FRAMES_PER_THROWABLE; i++) {
+            StackTraceElement frame = stack[i];
+            append("\tat ");
+            append(frame.getClassName());
+            append(".");
+            append(frame.getMethodName());
+            append("(");
+            if (frame.isNativeMethod()) {
+                append("Native Method");
+            } else if (frame.getFileName() == null) {
+                append("Unknown Source");
+            } else {
+                append(frame.getFileName());
+                if (frame.getLineNumber() >= 0) {
+                    append(":");
+                    append(frame.getLineNumber());
+                }
+            }
+            append(")\n");
+        }
+        if (stack.length > MAX_FRAMES_PER_THROWABLE) {
+            append("\t... ");
+            append(stack.length - MAX_FRAMES_PER_THROWABLE);
+            append(" more\n");
+        }
+    }
+
+    private void appendField(@NonNull String name, @Nullable String value) {
+        append(name);
+        append(": ");
+        append(value == null ? "null" : value);
+        append("\n");
+    }
+
+    private void appendField(@NonNull String name, long value) {
+        append(name);
+        append(": ");
+        append(value);
+        append("\n");
+    }
+
+    // Encodes UTF-8 by hand, since String.getBytes() would allocate
+    private void append(@NonNull String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                if (!fits(2)) {
+                    return;
+                }
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                if (!fits(4)) {
+                    return;
+                }
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                put(0xf0 | (codePoint >> 18));
+                put(0x80 | ((codePoint >> 12) & 0x3f));
+                put(0x80 | ((codePoint >> 6) & 0x3f));
+                put(0x80 | (codePoint & 0x3f));
+            } else {
+                if (!fits(3)) {
+                    return;
+                }
+                // Lone surrogates are written as they are, rather than allocating a replacement
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void append(long value) {
+        if (value < 0) {
+            put('-');
+            if (value == Long.MIN_VALUE) {
+                append("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        if (!fits(digits)) {
+            return;
+        }
+        for (int i = mLength + digits - 1; i >= mLength; i--) {
+            mBuffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength += digits;
+    }
+
+    private boolean fits(int count) {
+        if (mLength + count > mBuffer.length) {
+            mLength = mBuffer.length; // Cut off here, rather than mid-character
+            return false;
+        }
+        return true;
+    }
+
+    private void put(int b) {
+        if (mLength < mBuffer.length) {
+            mBuffer[mLength++] = (byte) b;
+        }
+    }
+}
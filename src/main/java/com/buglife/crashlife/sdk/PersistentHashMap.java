@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash map, as a hash array mapped trie. Updates return a new map that shares every
+ * node off the path to the changed key with the old one, so they cost O(log32 n) and copying a
+ * map is just copying a reference.
+ *
+ * Each node covers 5 bits of the key's hash. Nodes hold a bitmap of the slots in use, and a packed
+ * array of key/value pairs where a null key means the value is a child node. Keys whose entire
+ * hashes collide share a collision node, which is searched linearly.
+ *
+ * Keys and values may not be null.
+ */
+final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+    interface Visitor<K, V> {
+        /**
+         * @return Whether to go on to the next entry
+         */
+        boolean visit(@NonNull K key, @NonNull V value);
+    }
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    @Nullable private final Node mRoot;
+    private final int mSize;
+
+    private PersistentHashMap(@Nullable Node root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(@NonNull K key) {
+        return mRoot == null ? null : (V) mRoot.find(0, hash(key), key);
+    }
+
+    /**
+     * @return A map with the key set to the value; this map if it already was
+     */
+    @NonNull
+    PersistentHashMap<K, V> plus(@NonNull K key, @NonNull V value) {
+        boolean[] added = new boolean[1];
+        Node root = (mRoot == null ? BitmapNode.EMPTY : mRoot).put(0, hash(key), key, value, added);
+        if (root == mRoot) {
+            return this;
+        }
+        return new PersistentHashMap<>(root, added[0] ? mSize + 1 : mSize);
+    }
+
+    /**
+     * @return A map without the key; this map if it didn't have it
+     */
+    @NonNull
+    PersistentHashMap<K, V> minus(@NonNull K key) {
+        if (mRoot == null) {
+            return this;
+        }
+        Node root = mRoot.remove(0, hash(key), key);
+        if (root == mRoot) {
+            return this;
+        }
+        return root == null ? PersistentHashMap.<K, V>empty() : new PersistentHashMap<K, V>(root, mSize - 1);
+    }
+
+    /**
+     * Iterates over this version of the map; later updates don't affect it.
+     */
+    @NonNull
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(mRoot);
+    }
+
+    /**
+     * Visits every entry of this version of the map, in iteration order. Unlike iterating, this
+     * allocates nothing.
+     */
+    void forEach(@NonNull Visitor<? super K, ? super V> visitor) {
+        if (mRoot != null) {
+            PersistentHashMap.<K, V>visit(mRoot.mArray, visitor);
+        }
+    }
+
+    // Returns false once the visitor has had enough
+    @SuppressWarnings("unchecked")
+    private static <K, V> boolean visit(@NonNull Object[] array, @NonNull Visitor<? super K, ? super V> visitor) {
+        for (int i = 0; i < array.length; i += 2) {
+            Object keyOrNull = array[i];
+            boolean goOn = keyOrNull == null
+                    ? PersistentHashMap.<K, V>visit(((Node) array[i + 1]).mArray, visitor)
+                    : visitor.visit((K) keyOrNull, (V) array[i + 1]);
+            if (!goOn) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(@NonNull Object key) {
+        int h = key.hashCode();
+        // Spread the high bits down, since the top levels of the trie only see the low ones
+        return h ^ (h >>> 16);
+    }
+
+    private abstract static class Node {
+        // Key/value pairs; a null key means the value is a child node
+        @NonNull final Object[] mArray;
+
+        Node(@NonNull Object[] array) {
+            mArray = array;
+        }
+
+        @Nullable abstract Object find(int shift, int hash, @NonNull Object key);
+
+        @NonNull abstract Node put(int shift, int hash, @NonNull Object key, @NonNull Object value, @NonNull boolean[] added);
+
+        /**
+         * @return The node without the key, or null if that leaves it empty
+         */
+        @Nullable abstract Node remove(int shift, int hash, @NonNull Object key);
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int mBitmap;
+
+        BitmapNode(int bitmap, @NonNull Object[] array) {
+            super(array);
+            mBitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(mBitmap & (bit - 1));
+        }
+
+        @Nullable
+        @Override
+        Object find(int shift, int hash, @NonNull Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((mBitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * index(bit);
+            Object keyOrNull = mArray[i];
+            if (keyOrNull == null) {
+                return ((Node) mArray[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(keyOrNull) ? mArray[i + 1] : null;
+        }
+
+        @NonNull
+        @Override
+        Node put(int shift, int hash, @NonNull Object key, @NonNull Object value, @NonNull boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * index(bit);
+            if ((mBitmap & bit) == 0) {
+                Object[] array = new Object[mArray.length + 2];
+                System.arraycopy(mArray, 0, array, 0, i);
+                array[i] = key;
+                array[i + 1] = value;
+                System.arraycopy(mArray, i, array, i + 2, mArray.length - i);
+                added[0] = true;
+                return new BitmapNode(mBitmap | bit, array);
+            }
+            Object keyOrNull = mArray[i];
+            Object valueOrNode = mArray[i + 1];
+            if (keyOrNull == null) {
+                Node child = (Node) valueOrNode;
+                Node newChild = child.put(shift + BITS, hash, key, value, added);
+                return newChild == child ? this : withPair(i, null, newChild);
+            }
+            if (key.equals(keyOrNull)) {
+                return value == valueOrNode ? this : withPair(i, keyOrNull, value);
+            }
+            added[0] = true;
+            return withPair(i, null, createNode(shift + BITS, keyOrNull, valueOrNode, hash, key, value));
+        }
+
+        @Nullable
+        @Override
+        Node remove(int shift, int hash, @NonNull Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((mBitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * index(bit);
+            Object keyOrNull = mArray[i];
+            if (keyOrNull == null) {
+                Node child = (Node) mArray[i + 1];
+                Node newChild = child.remove(shift + BITS, hash, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return withPair(i, null, newChild);
+                }
+            } else if (!key.equals(keyOrNull)) {
+                return this;
+            }
+            if (mBitmap == bit) {
+                return null;
+            }
+            Object[] array = new Object[mArray.length - 2];
+            System.arraycopy(mArray, 0, array, 0, i);
+            System.arraycopy(mArray, i + 2, array, i, mArray.length - i - 2);
+            return new BitmapNode(mBitmap ^ bit, array);
+        }
+
+        @NonNull
+        private BitmapNode withPair(int i, @Nullable Object key, @NonNull Object value) {
+            Object[] array = mArray.clone();
+            array[i] = key;
+            array[i + 1] = value;
+            return new BitmapNode(mBitmap, array);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+        private final int mHash;
+
+        CollisionNode(int hash, @NonNull Object[] array) {
+            super(array);
+            mHash = hash;
+        }
+
+        private int indexOf(@NonNull Object key) {
+            for (int i = 0; i < mArray.length; i += 2) {
+                if (key.equals(mArray[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Nullable
+        @Override
+        Object find(int shift, int hash, @NonNull Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : mArray[i + 1];
+        }
+
+        @NonNull
+        @Override
+        Node put(int shift, int hash, @NonNull Object key, @NonNull Object value, @NonNull boolean[] added) {
+            if (hash != mHash) {
+                // Push this node down a level, under a bitmap node that can tell the two hashes apart
+                Node parent = new BitmapNode(1 << ((mHash >>> shift) & MASK), new Object[] {null, this});
+                return parent.put(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (mArray[i + 1] == value) {
+                    return this;
+                }
+                Object[] array = mArray.clone();
+                array[i + 1] = value;
+                return new CollisionNode(mHash, array);
+            }
+            Object[] array = Arrays.copyOf(mArray, mArray.length + 2);
+            array[mArray.length] = key;
+            array[mArray.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(mHash, array);
+        }
+
+        @Nullable
+        @Override
+        Node remove(int shift, int hash, @NonNull Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            if (mArray.length == 2) {
+                return null;
+            }
+            Object[] array = new Object[mArray.length - 2];
+            System.arraycopy(mArray, 0, array, 0, i);
+            System.arraycopy(mArray, i + 2, array, i, mArray.length - i - 2);
+            return new CollisionNode(mHash, array);
+        }
+    }
+
+    @NonNull
+    private static Node createNode(int shift, @NonNull Object key1, @NonNull Object value1, int hash2, @NonNull Object key2, @NonNull Object value2) {
+        int hash1 = hash(key1);
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        }
+        boolean[] added = new boolean[1];
+        return BitmapNode.EMPTY
+                .put(shift, hash1, key1, value1, added)
+                .put(shift, hash2, key2, value2, added);
+    }
+
+    /**
+     * Depth-first walk over the pair arrays, keeping the path from the root on a stack.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private Object[][] mArrays = new Object[8][];
+        private int[] mPositions = new int[8];
+        private int mDepth = -1;
+        @Nullable private Map.Entry<K, V> mNext;
+
+        EntryIterator(@Nullable Node root) {
+            if (root != null) {
+                push(root.mArray);
+                advance();
+            }
+        }
+
+        private void push(@NonNull Object[] array) {
+            mDepth++;
+            if (mDepth == mArrays.length) {
+                mArrays = Arrays.copyOf(mArrays, mDepth * 2);
+                mPositions = Arrays.copyOf(mPositions, mDepth * 2);
+            }
+            mArrays[mDepth] = array;
+            mPositions[mDepth] = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            mNext = null;
+            while (mDepth >= 0) {
+                Object[] array = mArrays[mDepth];
+                int position = mPositions[mDepth];
+                if (position >= array.length) {
+                    mArrays[mDepth] = null;
+                    mDepth--;
+                    continue;
+                }
+                mPositions[mDepth] = position + 2;
+                Object keyOrNull = array[position];
+                if (keyOrNull == null) {
+                    push(((Node) array[position + 1]).mArray);
+                } else {
+                    mNext = new AbstractMap.SimpleImmutableEntry<>((K) keyOrNull, (V) array[position + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> next = mNext;
+            advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
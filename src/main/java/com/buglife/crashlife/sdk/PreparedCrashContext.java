@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the attributes a crash report carries besides the crash itself already encoded, as
+ * {@link AttributeMap} binary sections, so that the uncaught exception handler doesn't have to
+ * query the system or serialize anything but the throwable and its threads.
+ *
+ * The custom attributes and the session are re-encoded in the background whenever the client's
+ * state changes; the device is encoded once. The environment (battery, storage, network, location)
+ * changes on its own, but querying it is slow, so it's sampled once at start and then again only
+ * when an event is captured, on the thread capturing it, and at most once per
+ * {@link #ENVIRONMENT_SAMPLE_INTERVAL_MILLIS}. A crash report carries the latest sample, which is as
+ * old as the app's last event, or its start, if it has been idle since.
+ *
+ * A section that isn't ready when the process crashes, say because it crashed right after starting,
+ * can be encoded on the spot, as it always used to be, or left out.
+ */
+final class PreparedCrashContext {
+    private static final long ENVIRONMENT_SAMPLE_INTERVAL_MILLIS = 30 * 1000;
+
+    // An encoded section, and what it was encoded from
+    private static final class Section {
+        @NonNull final Object mSource;
+        @NonNull final byte[] mBytes;
+
+        Section(@NonNull Object source, @NonNull byte[] bytes) {
+            mSource = source;
+            mBytes = bytes;
+        }
+    }
+
+    @NonNull private final Context mContext;
+    @NonNull private final AtomicReference<ClientState> mState;
+    @NonNull private final Handler mHandler;
+    @NonNull private final AtomicBoolean mRefreshScheduled = new AtomicBoolean();
+    // When the environment was last sampled, by SystemClock.elapsedRealtime(); claimed by whoever samples it next
+    @NonNull private final AtomicLong mEnvironmentSampledAt = new AtomicLong(Long.MIN_VALUE);
+    // Keyed by the client state the attributes were taken from
+    @Nullable private volatile Section mAttributes;
+    // Keyed by the user identifier
+    @Nullable private volatile Section mSession;
+    @Nullable private volatile byte[] mDevice;
+    @Nullable private volatile byte[] mEnvironment;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshScheduled.set(false);
+            refresh();
+        }
+    };
+
+    /**
+     * @param state The client's state, read whenever it's re-encoded
+     * @param handler Where encoding and sampling happen; never the main thread
+     */
+    PreparedCrashContext(@NonNull Context context, @NonNull AtomicReference<ClientState> state, @NonNull Handler handler) {
+        mContext = context;
+        mState = state;
+        mHandler = handler;
+    }
+
+    /**
+     * Encodes the device, the current state and a first sample of the environment.
+     */
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDevice = encode(JsonUtils.systemAttributesFromJsonObject(new DeviceSnapshot(mContext).toCacheJson()));
+                refresh();
+                sampleEnvironmentIfStale();
+            }
+        });
+    }
+
+    /**
+     * Samples the environment on the calling thread, unless it was sampled recently, or is being
+     * sampled already. For background threads that are busy capturing an event anyway.
+     */
+    void sampleEnvironmentIfStale() {
+        long now = SystemClock.elapsedRealtime();
+        long sampledAt = mEnvironmentSampledAt.get();
+        if (sampledAt != Long.MIN_VALUE && now - sampledAt < ENVIRONMENT_SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+        if (!mEnvironmentSampledAt.compareAndSet(sampledAt, now)) {
+            return;
+        }
+        byte[] environment = encode(JsonUtils.systemAttributesFromJsonObject(new EnvironmentSnapshot(mContext).toCacheJson()));
+        if (environment != null) {
+            mEnvironment = environment;
+        }
+    }
+
+    /**
+     * Schedules re-encoding of the state. Changes in quick succession are encoded once.
+     */
+    void onStateChanged() {
+        if (mRefreshScheduled.compareAndSet(false, true)) {
+            mHandler.post(mRefresh);
+        }
+    }
+
+    private void refresh() {
+        ClientState state = mState.get();
+        Section attributes = mAttributes;
+        if (attributes == null || attributes.mSource != state) {
+            byte[] bytes = encode(state.getAttributes());
+            if (bytes != null) {
+                mAttributes = new Section(state, bytes);
+            }
+        }
+        Section session = mSession;
+        if (session == null || !session.mSource.equals(state.getUserIdentifier())) {
+            byte[] bytes = encodeSession(state.getUserIdentifier());
+            if (bytes != null) {
+                mSession = new Section(state.getUserIdentifier(), bytes);
+            }
+        }
+    }
+
+    /**
+     * Called while a crash is reported.
+     * @param state The state the crash report is for
+     * @param encodeMissing Whether to encode sections that aren't ready, rather than leave them out.
+     *                      The custom attributes are always encoded, since they're quick to.
+     * @return The encoded sections for the custom attributes, the device, the environment and the
+     * session, in that order, so that later ones win where keys collide
+     */
+    @NonNull
+    List<byte[]> getSections(@NonNull ClientState state, boolean encodeMissing) {
+        List<byte[]> sections = new ArrayList<>(4);
+        Section attributes = mAttributes;
+        add(sections, attributes != null && attributes.mSource == state ? attributes.mBytes : encode(state.getAttributes()));
+        byte[] device = mDevice;
+        if (device == null && encodeMissing) {
+            device = encode(JsonUtils.systemAttributesFromJsonObject(new DeviceSnapshot(mContext).toCacheJson()));
+        }
+        add(sections, device);
+        byte[] environment = mEnvironment;
+        if (environment == null && encodeMissing) {
+            environment = encode(JsonUtils.systemAttributesFromJsonObject(new EnvironmentSnapshot(mContext).toCacheJson()));
+        }
+        add(sections, environment);
+        Section session = mSession;
+        if (session != null && session.mSource.equals(state.getUserIdentifier())) {
+            add(sections, session.mBytes);
+        } else if (encodeMissing) {
+            add(sections, encodeSession(state.getUserIdentifier()));
+        }
+        return sections;
+    }
+
+    private static void add(@NonNull List<byte[]> sections, @Nullable byte[] section) {
+        if (section != null) {
+            sections.add(section);
+        }
+    }
+
+    @Nullable
+    private byte[] encodeSession(@NonNull String userIdentifier) {
+        return encode(JsonUtils.systemAttributesFromJsonObject(new SessionSnapshot(mContext, userIdentifier).toCacheJson()));
+    }
+
+    @Nullable
+    private static byte[] encode(@NonNull AttributeMap attributes) {
+        try {
+            return attributes.toCacheBinary();
+        } catch (IOException e) {
+            Log.w("Unable to encode Crashlife crash context", e);
+            return null;
+        }
+    }
+}
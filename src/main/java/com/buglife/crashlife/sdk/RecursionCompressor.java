@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collapses runaway recursion in stack traces. A StackOverflowError carries thousands of frames
+ * that are mostly a short cycle, repeated; each run of repeats is cut down to a single copy of the
+ * cycle followed by a marker frame saying how many more times it repeated. Frames outside the
+ * runs, at either end of the stack, are kept as they are.
+ */
+final class RecursionCompressor {
+    // Cycles longer than this are rare, and looking for them would make every stack slower to scan
+    private static final int MAX_CYCLE_LENGTH = 64;
+    // Fewer repeats than this are left alone; they may well be legitimate
+    private static final int MIN_REPEATS = 4;
+    private static final String MARKER_CLASS_NAME = "...";
+
+    private RecursionCompressor() {/* No instances */}
+
+    /**
+     * @return The stack with repeated cycles collapsed; the same array if there were none
+     */
+    @NonNull
+    static StackTraceElement[] compress(@NonNull StackTraceElement[] stack) {
+        if (stack.length < MIN_REPEATS * 2) {
+            return stack;
+        }
+        List<StackTraceElement> result = null;
+        int i = 0;
+        while (i < stack.length) {
+            int bestLength = 0;
+            int bestRepeats = 0;
+            for (int length = 1; length <= MAX_CYCLE_LENGTH && i + length * MIN_REPEATS <= stack.length; length++) {
+                int repeats = repeatsAt(stack, i, length);
+                if (repeats >= MIN_REPEATS && repeats * length > bestRepeats * bestLength) {
+                    bestLength = length;
+                    bestRepeats = repeats;
+                }
+            }
+            if (bestRepeats == 0) {
+                if (result != null) {
+                    result.add(stack[i]);
+                }
+                i++;
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(i + bestLength + 1);
+                for (int j = 0; j < i; j++) {
+                    result.add(stack[j]);
+                }
+            }
+            for (int j = i; j < i + bestLength; j++) {
+                result.add(stack[j]);
+            }
+            result.add(marker(bestLength, bestRepeats - 1));
+            i += bestLength * bestRepeats;
+        }
+        return result == null ? stack : result.toArray(new StackTraceElement[result.size()]);
+    }
+
+    // How many times the cycle starting at start repeats back to back, counting itself
+    private static int repeatsAt(@NonNull StackTraceElement[] stack, int start, int length) {
+        int repeats = 1;
+        int next = start + length;
+        while (next + length <= stack.length && sameFrames(stack, start, next, length)) {
+            repeats++;
+            next += length;
+        }
+        return repeats;
+    }
+
+    private static boolean sameFrames(@NonNull StackTraceElement[] stack, int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!stack[first + i].equals(stack[second + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static StackTraceElement marker(int cycleLength, int omittedRepeats) {
+        String description = cycleLength == 1
+                ? "[previous frame repeated " + omittedRepeats + " more times]"
+                : "[previous " + cycleLength + " frames repeated " + omittedRepeats + " more times]";
+        return new StackTraceElement(MARKER_CLASS_NAME, description, null, -1);
+    }
+}
@@ -18,212 +18,381 @@
 package com.buglife.crashlife.sdk;
 
 import android.content.Context;
+import android.os.StatFs;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 final class ReportCache {
 
     static final String ATTRIBUTES_FILE_SUFFIX = "-attributes.json";
-    static final String FOOTPRINTS_FILE_SUFFIX = "-footprints.json";
+    static final String FOOTPRINTS_FILE_SUFFIX = "-footprints.json"; // Written by older versions of the SDK
+    static final String FOOTPRINTS_JOURNAL_SUFFIX = "-footprints.journal";
     static final String SNAPSHOTS_FILE_SUFFIX  = "-snapshots.json";
     static final String SESSION_FILE_SUFFIX = "-session.json";
+    static final String CONTEXT_ARENA_SUFFIX = "-context.arena";
+    static final String OUT_OF_MEMORY_REPORT_SUFFIX = "-oom.tmp";
+    static final String[] SESSION_FILE_SUFFIXES = {ATTRIBUTES_FILE_SUFFIX, FOOTPRINTS_FILE_SUFFIX, FOOTPRINTS_JOURNAL_SUFFIX,
+            SNAPSHOTS_FILE_SUFFIX, SESSION_FILE_SUFFIX, CONTEXT_ARENA_SUFFIX, OUT_OF_MEMORY_REPORT_SUFFIX, NativeCrashContainer.TEMP_SUFFIX};
+
+    // Segments roll over at this size, so that sent events free their disk space reasonably soon
+    private static final long MAX_SEGMENT_BYTES = 512 * 1024;
+    private static final String LEGACY_REPORT_EXTENSION = ".json";
+    // The cache never takes up more than this fraction of the remaining free space, so it backs off as the disk fills up
+    private static final long FREE_SPACE_DIVISOR = 20;
+    private static final long RETENTION_SCAN_INTERVAL_MILLIS = 60 * 1000;
 
-    private final File mCachedReportsDirectory;
     private final File mCachedNativeReportsDirectory;
+    private final SegmentedEventStore mEventStore;
+    private final ReportManifest mManifest;
+    private final File mFilesDir;
+    private final int mMaxEvents;
+    private final long mMaxBytes;
+    private final long mMaxAgeMillis;
+    private final Object mRetentionLock = new Object();
+    private long mFreeSpaceBudget = Long.MAX_VALUE;
+    private long mLastRetentionScanAt = Long.MIN_VALUE;
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    ReportCache(Context context) {
-        File reportDir = new File(context.getFilesDir(), "crashlife_events");
+    ReportCache(Context context, CrashlifeOptions options) {
         File nativeReportDir = new File(context.getFilesDir(), "crashlife_native");
 
-        if (!reportDir.exists()) {
-            reportDir.mkdir();
-        }
         if (!nativeReportDir.exists()) {
             nativeReportDir.mkdir();
         }
 
-        mCachedReportsDirectory = reportDir;
         mCachedNativeReportsDirectory = nativeReportDir;
+        mEventStore = new SegmentedEventStore(new File(context.getFilesDir(), "crashlife_event_log"), MAX_SEGMENT_BYTES);
+        migrateLegacyReports(new File(context.getFilesDir(), "crashlife_events"));
+        packLooseNativeReports();
+        mManifest = new ReportManifest(new File(context.getFilesDir(), "crashlife_manifest.json"), mEventStore, nativeReportDir);
+        mFilesDir = context.getFilesDir();
+        mMaxEvents = options.getMaxCachedEvents();
+        mMaxBytes = options.getMaxCacheBytes();
+        mMaxAgeMillis = options.getMaxCachedEventAgeMillis();
+        // Native crashes from the last session arrive behind our back, so they're only checked here
+        enforceRetention();
     }
 
-    String getReportsPath() {
-        return mCachedReportsDirectory.getPath();
+    /**
+     * Evicts reports until the cache is within its count, size and age limits. Crashes are kept over errors,
+     * errors over warnings and warnings over info; within a severity, the oldest go first.
+     * Only the manifest is consulted, so this is cheap enough to run after every write.
+     */
+    void enforceRetention() {
+        synchronized (mRetentionLock) {
+            long now = System.currentTimeMillis();
+            boolean fullScan = now - mLastRetentionScanAt >= RETENTION_SCAN_INTERVAL_MILLIS || now < mLastRetentionScanAt;
+            if (fullScan) {
+                mLastRetentionScanAt = now;
+                try {
+                    mFreeSpaceBudget = mManifest.getTotalBytes() + EnvironmentUtils.getFreeCapacityBytes(new StatFs(mFilesDir.getPath())) / FREE_SPACE_DIVISOR;
+                } catch (IllegalArgumentException e) {
+                    mFreeSpaceBudget = Long.MAX_VALUE;
+                }
+            }
+            long maxBytes = Math.min(mMaxBytes, mFreeSpaceBudget);
+            if (!fullScan && mManifest.size() <= mMaxEvents && mManifest.getTotalBytes() <= maxBytes) {
+                return;
+            }
+
+            List<ReportManifest.Entry> entries = mManifest.getEntries();
+            List<ReportManifest.Entry> evicted = new ArrayList<>();
+            long cutoff = now - mMaxAgeMillis;
+            long bytes = 0;
+            for (Iterator<ReportManifest.Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+                ReportManifest.Entry entry = iterator.next();
+                if (entry.getTimestamp() < cutoff) {
+                    evicted.add(entry);
+                    iterator.remove();
+                } else {
+                    bytes += entry.getSize();
+                }
+            }
+            // Least important first
+            Collections.sort(entries, new Comparator<ReportManifest.Entry>() {
+                @Override
+                public int compare(ReportManifest.Entry lhs, ReportManifest.Entry rhs) {
+                    int lhsRank = retentionRank(lhs.getSeverity());
+                    int rhsRank = retentionRank(rhs.getSeverity());
+                    if (lhsRank != rhsRank) {
+                        return lhsRank < rhsRank ? -1 : 1;
+                    }
+                    return lhs.getTimestamp() < rhs.getTimestamp() ? -1 : (lhs.getTimestamp() == rhs.getTimestamp() ? 0 : 1);
+                }
+            });
+            int count = entries.size();
+            for (ReportManifest.Entry entry : entries) {
+                if (count <= mMaxEvents && bytes <= maxBytes) {
+                    break;
+                }
+                evicted.add(entry);
+                count--;
+                bytes -= entry.getSize();
+            }
+            if (evicted.isEmpty()) {
+                return;
+            }
+            Log.w("Crashlife report cache is full; dropping " + evicted.size() + " unsent event(s).");
+            deleteReportFiles(evicted);
+            mManifest.drop(evicted);
+        }
+    }
+
+    private static int retentionRank(@Nullable Event.Severity severity) {
+        return severity == null ? 0 : severity.ordinal();
+    }
+
+    /**
+     * @return How many unsent reports have been evicted from the cache
+     */
+    long getDroppedReportCount() {
+        return mManifest.getDroppedCount();
+    }
+
+    /**
+     * Older versions of the SDK wrote each event to its own <millis>.json file. Moves those into the event store.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void migrateLegacyReports(File legacyReportDir) {
+        File[] legacyReports = legacyReportDir.listFiles();
+        if (legacyReports == null) {
+            return;
+        }
+        Arrays.sort(legacyReports);
+        for (File legacyReport : legacyReports) {
+            String name = legacyReport.getName();
+            if (!name.endsWith(LEGACY_REPORT_EXTENSION)) {
+                continue;
+            }
+            try {
+                long timestamp = Long.parseLong(name.substring(0, name.length() - LEGACY_REPORT_EXTENSION.length()));
+                mEventStore.append(IOUtils.readBytesFromFile(legacyReport), timestamp);
+            } catch (NumberFormatException | IOException e) {
+                Log.w("Unable to migrate cached Crashlife event " + name, e);
+                continue;
+            }
+            legacyReport.delete();
+        }
+        legacyReportDir.delete(); // Only succeeds once it's empty
+    }
+
+    /**
+     * Packs native crashes that the crash service couldn't, or that an older version of the SDK left as loose files.
+     */
+    private void packLooseNativeReports() {
+        File[] files = mCachedNativeReportsDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(NativeCrashContainer.TOMBSTONE_EXTENSION)) {
+                continue;
+            }
+            String uuid = name.substring(0, name.length() - NativeCrashContainer.TOMBSTONE_EXTENSION.length());
+            try {
+                NativeCrashContainer.pack(mCachedNativeReportsDirectory, uuid, null, null);
+            } catch (IOException e) {
+                // Left as it is for the next launch to retry
+                Log.w("Unable to pack Crashlife native crash " + uuid, e);
+            }
+        }
     }
 
     String getNativeReportsPath() {
         return mCachedNativeReportsDirectory.getPath();
     }
 
-    void deleteCachedReports(List<Event> successfullyPostedEvents, List<Event> successfullyPostedNativeEvents) {
-        for (Event e : successfullyPostedEvents) {
-            long timestamp = e.getTimestamp().getTime();
-            File cacheFile = new File(mCachedReportsDirectory, String.valueOf(timestamp) + ".json");
-            // Two posts in short order with additional log events could cause overlap.
-            if (cacheFile.exists() && !cacheFile.delete()) {
-                Log.w("Unable to delete posted JVM crash file: " + String.valueOf(timestamp));
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void deleteSessionFiles(String uuid) {
+        for (String suffix : SESSION_FILE_SUFFIXES) {
+            File file = new File(mCachedNativeReportsDirectory, uuid + suffix);
+            if (file.exists()) {
+                file.delete();
             }
         }
-        for (Event e : successfullyPostedNativeEvents) {
-            String uuid = e.getUuid();
-            File cacheFile = new File(mCachedNativeReportsDirectory, uuid + ".txt");
-            File attributesFile = new File(mCachedNativeReportsDirectory, uuid + ATTRIBUTES_FILE_SUFFIX);
-            File footprintsFile = new File(mCachedNativeReportsDirectory, uuid + FOOTPRINTS_FILE_SUFFIX);
-            File snapshotsFile = new File(mCachedNativeReportsDirectory, uuid + SNAPSHOTS_FILE_SUFFIX);
-            File sessionFile = new File(mCachedNativeReportsDirectory, uuid + SESSION_FILE_SUFFIX);
-            if (cacheFile.exists() && !(cacheFile.delete() && attributesFile.delete() && footprintsFile.delete()
-                    && snapshotsFile.delete() && sessionFile.delete())) {
-                Log.e("Unable to delete posted native crash file: " + uuid);
+    }
+
+    /**
+     * Deletes the state files of earlier sessions that ended without a native crash. Those are never
+     * read, and the crash context arena in particular is too big to leave lying around.
+     * Must be called before the current session creates its own files.
+     */
+    void deleteStaleSessionFiles() {
+        File[] files = mCachedNativeReportsDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            for (String suffix : SESSION_FILE_SUFFIXES) {
+                if (name.endsWith(suffix)) {
+                    String uuid = name.substring(0, name.length() - suffix.length());
+                    if (!new File(mCachedNativeReportsDirectory, uuid + NativeCrashContainer.TOMBSTONE_EXTENSION).exists()) {
+                        deleteSessionFiles(uuid);
+                    }
+                    break;
+                }
             }
         }
     }
 
-    void cacheEvent(Event event) {
-        JSONObject eventJson = event.toCacheJson();
-        String eventString = eventJson.toString();
-        String filename = System.currentTimeMillis() + ".json";
-        File file = new File(mCachedReportsDirectory, filename);
+    /**
+     * @return The manifest entry of the cached event, for deleting it once it has been sent; null if it couldn't be cached
+     */
+    @Nullable
+    ReportManifest.Entry cacheEvent(Event event) {
+        long timestamp = System.currentTimeMillis();
 
         try {
-            IOUtils.writeStringToFile(eventString, file);
+            byte[] payload = EventEncoding.encode(event);
+            ReportManifest.Entry entry = mManifest.appendJvm(payload, event.getSeverity(), timestamp);
+            enforceRetention();
+            return entry;
         } catch (IOException e) {
             Log.e("Unable to cache logged Crashlife event. Please contact support@buglife.com if you see this message.");
             e.printStackTrace();
+            return null;
         }
     }
 
-    List<Event> getCachedNativeEvents() {
-        ArrayList<Event> events = new ArrayList<>();
-        File[] cachedEvents = mCachedNativeReportsDirectory.listFiles();
-
-        for (File cachedEvent : cachedEvents) {
-            if (!cachedEvent.getName().endsWith(".txt")) {
-                //Filter out all the auxiliary files (footprints and attributes), let's get only the crashes here.
-                continue;
-            }
-            String cachedEventString;
-            try {
-                cachedEventString = IOUtils.readStringFromFile(cachedEvent);
-            } catch (IOException e) {
-                Log.w("Failed to load Crashlife cached native event from disk. It may have been deleted.");
-                e.printStackTrace();
-                continue;
-            }
+    /**
+     * @return A cursor over the cached reports, oldest first. Reports are only read as the cursor reaches them.
+     */
+    @NonNull
+    ReportCursor openCursor() {
+        return new ReportCursor(this, mManifest.getEntries());
+    }
 
-            String uuid = cachedEvent.getName().replace(".txt", "");
+    /**
+     * Reads and parses a single cached report.
+     * @return The event, or null if it couldn't be read
+     */
+    @Nullable
+    Event loadEvent(@NonNull ReportManifest.Entry entry) {
+        if (entry.getKind() == ReportManifest.Kind.NATIVE) {
+            return loadNativeEvent(new File(mCachedNativeReportsDirectory, entry.getId() + NativeCrashContainer.EXTENSION));
+        }
+        return loadJvmEvent(Long.parseLong(entry.getId()));
+    }
 
-            File crashFolder = cachedEvent.getParentFile();
+    @Nullable
+    private Event loadNativeEvent(@NonNull File cachedEvent) {
+        NativeCrashContainer.Contents contents;
+        try {
+            contents = NativeCrashContainer.read(cachedEvent);
+        } catch (IOException e) {
+            Log.w("Failed to load Crashlife cached native event from disk. It may have been deleted.");
+            e.printStackTrace();
+            return null;
+        }
 
-            // We could put the Snapshots into the attributes map here instead of after loading the attribute map.
-            // We have decided not to, but if that causes problems down the line, this issue can be revisited.
-            File attributesFile = new File(crashFolder, uuid + ATTRIBUTES_FILE_SUFFIX);
-            AttributeMap attributeMap;
-            try {
-                String jsonString = IOUtils.readStringFromFile(attributesFile);
-                JSONArray attributeMapJson = new JSONArray(jsonString);
-                attributeMap = AttributeMap.fromCacheJson(attributeMapJson);
-            } catch (Exception e) {
-                // There may not be any attributes, so don't scream about it. No e.printStacktrace()!
-                attributeMap = new AttributeMap();
-            }
+        // We could put the Snapshots into the attributes map here instead of after loading the attribute map.
+        // We have decided not to, but if that causes problems down the line, this issue can be revisited.
+        AttributeMap attributeMap = contents.attributes;
+        Client.putDroppedFootprintCount(attributeMap, contents.droppedFootprintCount);
+        JSONObject environmentSnapshot = NativeCrashContainer.environmentSnapshot(contents);
+        JSONObject deviceSnapshot = NativeCrashContainer.deviceSnapshot(contents);
+        if (environmentSnapshot != null) {
+            attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(environmentSnapshot));
+        }
+        if (deviceSnapshot != null) {
+            attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(deviceSnapshot));
+        }
+        if (contents.libFileIds != null) {
+            String yuuuuck = contents.libFileIds.toString();
+            Attribute attr = new Attribute(yuuuuck, Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL);
+            attributeMap.put("embedded_libs", attr);
+        }
+        if (contents.session != null) {
+            attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(contents.session));
+        }
 
-            File footprintsFile = new File(crashFolder, uuid + FOOTPRINTS_FILE_SUFFIX);
-            List<Footprint> footprints;
-            try {
-                String jsonString = IOUtils.readStringFromFile(footprintsFile);
-                JSONArray footprintsJson = new JSONArray(jsonString);
-                footprints = Footprint.listFromCacheJson(footprintsJson);
-            } catch (Exception e) {
-                //There may not be any footprints. don't scream into the void about it.
-                // finally, something useful!
-                footprints = new ArrayList<>();
-            }
+        // So now the Event being created from the .crash static method has all the properties that the events created
+        // by loadJvmEvent() would. The only difference is at what time they get added to the JSON.
+        // In the JVM case, it's at CrashCatcher.uncaughtException().
+        // In the native case, it's here, because we can't alter the crash report getting saved out
+        String uuid = cachedEvent.getName().replace(NativeCrashContainer.EXTENSION, "").toLowerCase();
+        Event event = Event.crash(contents.tombstone, attributeMap, contents.footprints, uuid);
+        event.setTimestamp(new Date(contents.timestamp));
+        return event;
+    }
 
-            //OK, a bit more work to do then bed.
-            //1. Load the environment and device snapshots from the snapshots file
-            //2. Load the session snapshot from the session file
-            //3. Add all 3 to the attribute map before putting it into the new Event
-            File snapshotsFile = new File(crashFolder, uuid + SNAPSHOTS_FILE_SUFFIX);
-            try {
-                String jsonString = IOUtils.readStringFromFile(snapshotsFile);
-                JSONObject snapshots = new JSONObject(jsonString);
-                JSONObject environmentSnapshot = snapshots.optJSONObject("environment_snapshot");
-                JSONObject deviceSnapshot = snapshots.optJSONObject("device_snapshot");
-                JSONArray libFileIds = snapshots.optJSONArray("lib_file_ids");
-                if (environmentSnapshot != null) {
-                    attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(environmentSnapshot));
-                }
-                if (deviceSnapshot != null) {
-                    attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(deviceSnapshot));
-                }
-                if (libFileIds != null) {
-                    String yuuuuck = libFileIds.toString();
-                    Attribute attr = new Attribute(yuuuuck, Attribute.ValueType.STRING, Attribute.FLAG_INTERNAL);
-                    attributeMap.put("embedded_libs", attr);
-                }
-            } catch (Exception e) {
-                e.printStackTrace(); // :/ not sure that's right at this hour.
-            }
-            File sessionFile = new File(crashFolder, uuid + SESSION_FILE_SUFFIX);
-            try {
-                String jsonString = IOUtils.readStringFromFile(sessionFile);
-                JSONObject session = new JSONObject(jsonString);
-                attributeMap.putAll(JsonUtils.systemAttributesFromJsonObject(session));
-            } catch (Exception e) {
-                e.printStackTrace();
+    @Nullable
+    private Event loadJvmEvent(long seq) {
+        SegmentedEventStore.Record record;
+        Event event;
+        try {
+            record = mEventStore.read(seq);
+            if (record == null) {
+                return null;
             }
+            event = EventEncoding.decode(record.payload);
+        } catch (IOException e) {
+            Log.e("Unable to read cached Crashlife event from file. If you're seeing this error, please contact support@buglife.com");
+            e.printStackTrace();
+            return null;
+        }
 
-            // So now the Event being created from the .crash static method has all the properties that the events created
-            // by getCachedEvents() would. The only difference is at what time they get added to the JSON.
-            // In the JVM case, it's at CrashCatcher.uncaughtException().
-            // In the native case, it's here, because we can't alter the crash report getting saved out
-            Event event = Event.crash(cachedEventString, attributeMap, footprints, cachedEvent.getName().replace(".txt", "").toLowerCase());
-            long timestamp = cachedEvent.lastModified();
-            event.setTimestamp(new Date(timestamp));
-            events.add(event);
+        // Events carry the time they happened at; only those that never got one are dated by when they were cached
+        if (event.getTimestamp().getTime() == 0) {
+            event.setTimestamp(new Date(record.timestamp));
         }
-        return events;
+        return event;
     }
-    List<Event> getCachedEvents() {
-        ArrayList<Event> events = new ArrayList<>();
-        File[] cachedEvents = mCachedReportsDirectory.listFiles();
 
-        for (File cachedEvent : cachedEvents) {
-            String cachedEventString;
-            try {
-                cachedEventString = IOUtils.readStringFromFile(cachedEvent);
-            } catch (IOException e) {
-                Log.e("Unable to read cached Crashlife event from file.");
-                e.printStackTrace();
-                continue;
-            }
+    int getCachedReportCount() {
+        return mManifest.size();
+    }
 
-            JSONObject cachedEventJson;
+    /**
+     * @return The metadata of every cached report, oldest first
+     */
+    List<ReportManifest.Entry> getCachedReportEntries() {
+        return mManifest.getEntries();
+    }
 
-            try {
-                cachedEventJson = new JSONObject(cachedEventString);
-            } catch (JSONException e) {
-                Log.e("Crashlife event was not a valid JSON object. If you're seeing this error, please contact support@buglife.com");
-                e.printStackTrace();
-                continue;
-            }
+    void deleteAllCachedReports() {
+        List<ReportManifest.Entry> entries = mManifest.getEntries();
+        mEventStore.acknowledge(mEventStore.getNextSeq() - 1);
+        deleteCachedReports(entries);
+    }
 
-            Event event = Event.fromCacheJson(cachedEventJson);
-            event.setTimestamp(new Date(Long.parseLong(cachedEvent.getName().replace(".json", ""))));
-            events.add(event);
-        }
-        return events;
+    void deleteCachedReports(@NonNull List<ReportManifest.Entry> entries) {
+        mManifest.removeAll(deleteReportFiles(entries));
     }
 
-    void deleteAllCachedReports() {
-        deleteCachedReports(getCachedEvents(), getCachedNativeEvents());
+    /**
+     * @return The entries whose reports are gone
+     */
+    @NonNull
+    private List<ReportManifest.Entry> deleteReportFiles(@NonNull List<ReportManifest.Entry> entries) {
+        List<ReportManifest.Entry> deleted = new ArrayList<>();
+        for (ReportManifest.Entry entry : entries) {
+            if (entry.getKind() == ReportManifest.Kind.JVM) {
+                mEventStore.remove(Long.parseLong(entry.getId()));
+            } else {
+                // Everything about a native crash is packed into its container
+                File cacheFile = new File(mCachedNativeReportsDirectory, entry.getId() + NativeCrashContainer.EXTENSION);
+                if (cacheFile.exists() && !cacheFile.delete()) {
+                    Log.e("Unable to delete cached native crash file: " + entry.getId());
+                    continue;
+                }
+            }
+            deleted.add(entry);
+        }
+        return deleted;
     }
 }
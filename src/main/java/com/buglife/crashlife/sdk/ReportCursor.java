@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks the report cache oldest first, reading each report only when it's reached.
+ * Only the manifest entries are held up front, so memory use is bounded by the page
+ * size rather than by how many reports have piled up.
+ */
+final class ReportCursor {
+    static final class Page {
+        @NonNull private final List<Event> mEvents = new ArrayList<>();
+        @NonNull private final List<ReportManifest.Entry> mEntries = new ArrayList<>();
+
+        @NonNull
+        List<Event> getEvents() {
+            return mEvents;
+        }
+
+        /**
+         * @return The manifest entries of the events in this page, for deleting them once they're sent
+         */
+        @NonNull
+        List<ReportManifest.Entry> getEntries() {
+            return mEntries;
+        }
+
+        boolean isEmpty() {
+            return mEvents.isEmpty();
+        }
+    }
+
+    @NonNull private final ReportCache mReportCache;
+    @NonNull private final List<ReportManifest.Entry> mEntries;
+    private int mPosition;
+
+    ReportCursor(@NonNull ReportCache reportCache, @NonNull List<ReportManifest.Entry> entries) {
+        mReportCache = reportCache;
+        mEntries = entries;
+    }
+
+    boolean hasNext() {
+        return mPosition < mEntries.size();
+    }
+
+    /**
+     * Reads the next page of events. A page holds at most maxEvents events, and stops before the reports
+     * it holds add up to more than maxBytes on disk; a single oversized report still gets a page of its own.
+     * Reports that can't be read are skipped.
+     */
+    @NonNull
+    Page nextPage(int maxEvents, long maxBytes) {
+        Page page = new Page();
+        long bytes = 0;
+        while (hasNext() && page.mEvents.size() < maxEvents) {
+            ReportManifest.Entry entry = mEntries.get(mPosition);
+            if (!page.mEvents.isEmpty() && bytes + entry.getSize() > maxBytes) {
+                break;
+            }
+            mPosition++;
+            Event event = mReportCache.loadEvent(entry);
+            if (event == null) {
+                continue;
+            }
+            bytes += entry.getSize();
+            page.mEvents.add(event);
+            page.mEntries.add(entry);
+        }
+        return page;
+    }
+}
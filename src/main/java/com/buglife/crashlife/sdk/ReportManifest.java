@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Index of the reports in the report cache, so that they can be counted, listed and purged
+ * without reading or parsing the reports themselves.
+ *
+ * JVM reports live in the {@link SegmentedEventStore} and are identified by their sequence id.
+ * Records appended since the manifest was last saved are recovered from the store, so adding an
+ * entry doesn't rewrite the manifest; removing one does, because the manifest is what remembers
+ * that a record still sitting in a segment has already been sent.
+ *
+ * Native reports are written by the crash service in another process, so they are picked up by
+ * scanning the native reports directory when the manifest is loaded.
+ */
+final class ReportManifest {
+    enum Kind {
+        JVM,
+        NATIVE
+    }
+
+    static final class Entry implements JSONCaching {
+        private static final String ID = "id";
+        private static final String KIND = "kind";
+        private static final String SEVERITY = "severity";
+        private static final String SIZE = "size";
+        private static final String TIMESTAMP = "timestamp";
+
+        @NonNull private final String mId;
+        @NonNull private final Kind mKind;
+        @Nullable private final Event.Severity mSeverity;
+        private final long mSize;
+        private final long mTimestamp;
+
+        Entry(@NonNull String id, @NonNull Kind kind, @Nullable Event.Severity severity, long size, long timestamp) {
+            mId = id;
+            mKind = kind;
+            mSeverity = severity;
+            mSize = size;
+            mTimestamp = timestamp;
+        }
+
+        /**
+         * @return The sequence id for JVM reports, the report file name without its extension for native ones
+         */
+        @NonNull
+        String getId() {
+            return mId;
+        }
+
+        @NonNull
+        Kind getKind() {
+            return mKind;
+        }
+
+        @Nullable
+        Event.Severity getSeverity() {
+            return mSeverity;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @NonNull
+        @Override
+        public JSONObject toCacheJson() {
+            JSONObject result = new JSONObject();
+            JsonUtils.safePut(result, ID, mId);
+            JsonUtils.safePut(result, KIND, mKind.toString().toLowerCase());
+            if (mSeverity != null) {
+                JsonUtils.safePut(result, SEVERITY, mSeverity.toString().toLowerCase());
+            }
+            JsonUtils.safePut(result, SIZE, mSize);
+            JsonUtils.safePut(result, TIMESTAMP, mTimestamp);
+            return result;
+        }
+
+        @Override
+        public void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name(ID).value(mId);
+            writer.name(KIND).value(mKind.toString().toLowerCase());
+            if (mSeverity != null) {
+                writer.name(SEVERITY).value(mSeverity.toString().toLowerCase());
+            }
+            writer.name(SIZE).value(mSize);
+            writer.name(TIMESTAMP).value(mTimestamp);
+            writer.endObject();
+        }
+
+        @Nullable
+        static Entry fromCacheJson(@NonNull JSONObject jsonObject) {
+            String id = JsonUtils.safeGetString(jsonObject, ID);
+            String kind = JsonUtils.safeGetString(jsonObject, KIND);
+            if (id == null || kind == null) {
+                return null;
+            }
+            String severity = JsonUtils.safeGetString(jsonObject, SEVERITY);
+            return new Entry(id,
+                    "native".equals(kind) ? Kind.NATIVE : Kind.JVM,
+                    severity == null ? null : Event.Severity.fromLowercaseString(severity),
+                    JsonUtils.safeGetLong(jsonObject, SIZE),
+                    JsonUtils.safeGetLong(jsonObject, TIMESTAMP));
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String NEXT_SEQ = "next_seq";
+    private static final String ENTRIES = "entries";
+    private static final String DROPPED_COUNT = "dropped_count";
+
+    @NonNull private final File mFile;
+    @NonNull private final SegmentedEventStore mEventStore;
+    @NonNull private final File mNativeReportsDirectory;
+    // Keyed by kind and id
+    @NonNull private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private long mDroppedCount;
+
+    ReportManifest(@NonNull File file, @NonNull SegmentedEventStore eventStore, @NonNull File nativeReportsDirectory) {
+        mFile = file;
+        mEventStore = eventStore;
+        mNativeReportsDirectory = nativeReportsDirectory;
+        load();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized int size(@NonNull Kind kind) {
+        int count = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.getKind() == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The on-disk size of every cached report
+     */
+    synchronized long getTotalBytes() {
+        long bytes = 0;
+        for (Entry entry : mEntries.values()) {
+            bytes += entry.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return How many reports have been evicted from the cache without being sent
+     */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Removes reports that were evicted rather than sent, and counts them as dropped.
+     */
+    synchronized void drop(@NonNull List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (mEntries.remove(key(entry.getKind(), entry.getId())) != null) {
+                mDroppedCount++;
+            }
+        }
+        save();
+    }
+
+    /**
+     * @return A copy of the entries, oldest first
+     */
+    @NonNull
+    synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.getTimestamp() < rhs.getTimestamp() ? -1 : (lhs.getTimestamp() == rhs.getTimestamp() ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Appends a JVM report to the event store and adds its entry. Not saved until the next removal,
+     * since it can be recovered from the store.
+     *
+     * Both happen under the lock {@link #save()} takes, since a manifest saved in between would have
+     * the record's seq handed out but no entry for it, which the next load takes for a sent report.
+     */
+    @NonNull
+    synchronized Entry appendJvm(@NonNull byte[] payload, @Nullable Event.Severity severity, long timestamp) throws IOException {
+        long seq = mEventStore.append(payload, timestamp);
+        Entry entry = new Entry(String.valueOf(seq), Kind.JVM, severity, payload.length, timestamp);
+        mEntries.put(key(Kind.JVM, entry.getId()), entry);
+        return entry;
+    }
+
+    synchronized void remove(@NonNull Kind kind, @NonNull String id) {
+        if (mEntries.remove(key(kind, id)) != null) {
+            save();
+        }
+    }
+
+    synchronized void removeAll(@NonNull List<Entry> entries) {
+        boolean changed = false;
+        for (Entry entry : entries) {
+            changed |= mEntries.remove(key(entry.getKind(), entry.getId())) != null;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private static String key(Kind kind, String id) {
+        return kind + "/" + id;
+    }
+
+    private void load() {
+        LinkedHashMap<String, Entry> saved = new LinkedHashMap<>();
+        long savedNextSeq = 0;
+        if (mFile.exists()) {
+            try {
+                JSONObject manifestJson = new JSONObject(IOUtils.readStringFromFile(mFile));
+                savedNextSeq = manifestJson.optLong(NEXT_SEQ);
+                mDroppedCount = manifestJson.optLong(DROPPED_COUNT);
+                JSONArray entriesJson = manifestJson.getJSONArray(ENTRIES);
+                for (int i = 0; i < entriesJson.length(); i++) {
+                    Entry entry = Entry.fromCacheJson(entriesJson.getJSONObject(i));
+                    if (entry != null) {
+                        saved.put(key(entry.getKind(), entry.getId()), entry);
+                    }
+                }
+            } catch (IOException | JSONException e) {
+                Log.w("Crashlife report manifest is unreadable; rebuilding it from the report cache.");
+                e.printStackTrace();
+                saved.clear();
+                savedNextSeq = 0;
+            }
+        }
+
+        // Reconcile with what's actually in the store and on disk. Reports are only parsed if the manifest
+        // has never seen them.
+        boolean changed = false;
+        for (long seq : mEventStore.getSeqs()) {
+            String id = String.valueOf(seq);
+            Entry entry = saved.remove(key(Kind.JVM, id));
+            if (entry == null) {
+                if (seq < savedNextSeq) {
+                    // Already sent and removed from the manifest, but its segment is still around
+                    mEventStore.remove(seq);
+                    continue;
+                }
+                entry = recoverJvmEntry(mEventStore, seq);
+                if (entry == null) {
+                    continue;
+                }
+                changed = true;
+            }
+            mEntries.put(key(Kind.JVM, id), entry);
+        }
+        File[] nativeReports = mNativeReportsDirectory.listFiles();
+        if (nativeReports != null) {
+            for (File report : nativeReports) {
+                String name = report.getName();
+                if (!name.endsWith(NativeCrashContainer.EXTENSION)) {
+                    continue;
+                }
+                String id = name.substring(0, name.length() - NativeCrashContainer.EXTENSION.length());
+                Entry entry = saved.remove(key(Kind.NATIVE, id));
+                if (entry == null) {
+                    entry = new Entry(id, Kind.NATIVE, Event.Severity.CRASH, report.length(), report.lastModified());
+                    changed = true;
+                }
+                mEntries.put(key(Kind.NATIVE, id), entry);
+            }
+        }
+        // Whatever is left was deleted behind our back
+        if (changed || !saved.isEmpty() || !mFile.exists()) {
+            save();
+        }
+    }
+
+    @Nullable
+    private static Entry recoverJvmEntry(@NonNull SegmentedEventStore eventStore, long seq) {
+        SegmentedEventStore.Record record;
+        try {
+            record = eventStore.read(seq);
+        } catch (IOException e) {
+            Log.w("Dropping unreadable Crashlife cached event " + seq, e);
+            eventStore.remove(seq);
+            return null;
+        }
+        if (record == null) {
+            return null;
+        }
+        Event.Severity severity = null;
+        try {
+            severity = EventEncoding.decode(record.payload).getSeverity();
+        } catch (IOException e) {
+            // It'll fail the same way when it's sent, and get reported there
+        }
+        return new Entry(String.valueOf(seq), Kind.JVM, severity, record.payload.length, record.timestamp);
+    }
+
+    private void save() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8)));
+            try {
+                writer.beginObject();
+                writer.name(NEXT_SEQ).value(mEventStore.getNextSeq());
+                writer.name(ENTRIES).beginArray();
+                for (Entry entry : mEntries.values()) {
+                    entry.writeCacheJson(writer);
+                }
+                writer.endArray();
+                writer.name(DROPPED_COUNT).value(mDroppedCount);
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to replace " + mFile.getName());
+            }
+        } catch (IOException e) {
+            // Not fatal; the next load rebuilds whatever is missing from the store and the native reports directory
+            Log.w("Unable to save Crashlife report manifest", e);
+        }
+    }
+}
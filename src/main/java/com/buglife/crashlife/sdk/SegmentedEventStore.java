@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store for cached events.
+ *
+ * Records are appended to size-capped segment files, named after the sequence id of their first record.
+ * Each record is laid out as:
+ *   int length | long seq | long timestamp | int crc | payload
+ * where the CRC32 covers the sequence id, the timestamp and the payload. Sequence ids increase
+ * monotonically for the lifetime of the store.
+ *
+ * Records are never rewritten. Removing a record only drops it from the index; a segment file is
+ * deleted once none of its records are live. The active segment is kept even when empty, since
+ * its name is what carries the next sequence id across launches.
+ */
+final class SegmentedEventStore {
+    static final class Record {
+        final long seq;
+        final long timestamp;
+        @NonNull final byte[] payload;
+
+        private Record(long seq, long timestamp, @NonNull byte[] payload) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Segment {
+        @NonNull final File file;
+        final long firstSeq;
+        long size;
+        int liveCount;
+
+        Segment(@NonNull File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+        }
+    }
+
+    private static final class Location {
+        @NonNull final Segment segment;
+        final long offset;
+        final int length;
+        final long timestamp;
+
+        Location(@NonNull Segment segment, long offset, int length, long timestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 4;
+    // Anything bigger than this is a torn or corrupt length prefix, not an event
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    @NonNull private final File mDirectory;
+    private final long mMaxSegmentBytes;
+    @NonNull private final List<Segment> mSegments = new ArrayList<>();
+    @NonNull private final TreeMap<Long, Location> mIndex = new TreeMap<>();
+    @Nullable private Segment mActiveSegment;
+    @Nullable private OutputStream mOutput;
+    private long mNextSeq = 1;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    SegmentedEventStore(@NonNull File directory, long maxSegmentBytes) {
+        mDirectory = directory;
+        mMaxSegmentBytes = maxSegmentBytes;
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        recover();
+    }
+
+    /**
+     * Appends a record with a single write.
+     * @return The sequence id of the new record
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    synchronized long append(@NonNull byte[] payload, long timestamp) throws IOException {
+        long seq = mNextSeq;
+        byte[] record = encode(seq, timestamp, payload);
+        Segment segment = mActiveSegment;
+        if (segment == null || (segment.size > 0 && segment.size + record.length > mMaxSegmentBytes)) {
+            segment = rollOver();
+        }
+        try {
+            if (mOutput == null) {
+                // An empty segment may still hold the remains of a failed write
+                mOutput = new FileOutputStream(segment.file, segment.size > 0);
+            }
+            mOutput.write(record);
+        } catch (IOException e) {
+            // The write may have left a partial record behind, and anything after it would be unreadable
+            closeOutput();
+            mActiveSegment = null;
+            if (segment.liveCount == 0) {
+                segment.file.delete();
+                mSegments.remove(segment);
+            }
+            throw e;
+        }
+        mIndex.put(seq, new Location(segment, segment.size, payload.length, timestamp));
+        segment.size += record.length;
+        segment.liveCount++;
+        mNextSeq++;
+        return seq;
+    }
+
+    /**
+     * @return The record, or null if it has been removed
+     * @throws IOException If the record can't be read or fails its checksum
+     */
+    @Nullable
+    synchronized Record read(long seq) throws IOException {
+        Location location = mIndex.get(seq);
+        if (location == null) {
+            return null;
+        }
+        byte[] record = new byte[HEADER_LENGTH + location.length];
+        RandomAccessFile file = new RandomAccessFile(location.segment.file, "r");
+        try {
+            file.seek(location.offset);
+            file.readFully(record);
+        } finally {
+            file.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int length = buffer.getInt();
+        long recordSeq = buffer.getLong();
+        long timestamp = buffer.getLong();
+        int crc = buffer.getInt();
+        byte[] payload = Arrays.copyOfRange(record, HEADER_LENGTH, record.length);
+        if (length != location.length || recordSeq != seq || crc != crc(seq, timestamp, payload)) {
+            throw new IOException("Cached event " + seq + " is corrupt");
+        }
+        return new Record(seq, timestamp, payload);
+    }
+
+    synchronized void remove(long seq) {
+        Location location = mIndex.remove(seq);
+        if (location != null) {
+            release(location.segment);
+        }
+    }
+
+    /**
+     * Removes every record up to and including the watermark.
+     */
+    synchronized void acknowledge(long watermark) {
+        Iterator<Map.Entry<Long, Location>> iterator = mIndex.headMap(watermark, true).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next().getValue().segment;
+            iterator.remove();
+            release(segment);
+        }
+    }
+
+    /**
+     * @return The sequence ids of the live records, oldest first
+     */
+    @NonNull
+    synchronized List<Long> getSeqs() {
+        return new ArrayList<>(mIndex.keySet());
+    }
+
+    synchronized long getNextSeq() {
+        return mNextSeq;
+    }
+
+    synchronized int size() {
+        return mIndex.size();
+    }
+
+    synchronized void close() {
+        closeOutput();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void release(@NonNull Segment segment) {
+        segment.liveCount--;
+        if (segment.liveCount <= 0 && segment != mActiveSegment) {
+            segment.file.delete();
+            mSegments.remove(segment);
+        }
+    }
+
+    @NonNull
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private Segment rollOver() {
+        closeOutput();
+        Segment previous = mActiveSegment;
+        Segment segment = new Segment(new File(mDirectory, segmentName(mNextSeq)), mNextSeq);
+        mSegments.add(segment);
+        mActiveSegment = segment;
+        if (previous != null && previous.liveCount <= 0) {
+            previous.file.delete();
+            mSegments.remove(previous);
+        }
+        return segment;
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+            mOutput = null;
+        }
+    }
+
+    @NonNull
+    private static String segmentName(long firstSeq) {
+        // Zero-padded so that segments sort by name
+        return String.format(Locale.US, "%019d", firstSeq) + SEGMENT_EXTENSION;
+    }
+
+    @NonNull
+    private static byte[] encode(long seq, long timestamp, @NonNull byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(seq);
+        buffer.putLong(timestamp);
+        buffer.putInt(crc(seq, timestamp, payload));
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static int crc(long seq, long timestamp, @NonNull byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(seq).putLong(timestamp).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void recover() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        TreeMap<Long, File> segmentFiles = new TreeMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_EXTENSION)) {
+                continue;
+            }
+            try {
+                segmentFiles.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), file);
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+            Segment segment = new Segment(entry.getValue(), entry.getKey());
+            mNextSeq = Math.max(mNextSeq, segment.firstSeq);
+            try {
+                scan(segment);
+            } catch (IOException e) {
+                Log.w("Unable to read Crashlife event segment " + segment.file.getName(), e);
+            }
+            mSegments.add(segment);
+        }
+        // Keep appending to the newest segment, cut back to its last good record. Older segments are
+        // never appended to again, so whatever follows a bad record in those is simply ignored.
+        if (!mSegments.isEmpty()) {
+            Segment newest = mSegments.get(mSegments.size() - 1);
+            if (newest.file.length() != newest.size) {
+                try {
+                    RandomAccessFile file = new RandomAccessFile(newest.file, "rw");
+                    try {
+                        file.setLength(newest.size);
+                    } finally {
+                        file.close();
+                    }
+                    mActiveSegment = newest;
+                } catch (IOException e) {
+                    Log.w("Unable to truncate Crashlife event segment " + newest.file.getName(), e);
+                }
+            } else {
+                mActiveSegment = newest;
+            }
+        }
+        for (Segment segment : new ArrayList<>(mSegments)) {
+            if (segment.liveCount == 0 && segment != mActiveSegment) {
+                segment.file.delete();
+                mSegments.remove(segment);
+            }
+        }
+    }
+
+    private void scan(@NonNull Segment segment) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            while (true) {
+                int length;
+                long seq;
+                long timestamp;
+                int crc;
+                byte[] payload;
+                try {
+                    length = input.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        Log.w("Crashlife event segment " + segment.file.getName() + " has a corrupt record; ignoring the rest of it.");
+                        return;
+                    }
+                    seq = input.readLong();
+                    timestamp = input.readLong();
+                    crc = input.readInt();
+                    payload = new byte[length];
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    // Either the end of the segment, or the process died mid-write. Everything up to here is still good.
+                    return;
+                }
+                if (crc != crc(seq, timestamp, payload) || seq < mNextSeq) {
+                    Log.w("Crashlife event segment " + segment.file.getName() + " has a corrupt record; ignoring the rest of it.");
+                    return;
+                }
+                mIndex.put(seq, new Location(segment, segment.size, length, timestamp));
+                segment.size += HEADER_LENGTH + length;
+                segment.liveCount++;
+                mNextSeq = seq + 1;
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
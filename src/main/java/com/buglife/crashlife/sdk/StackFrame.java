@@ -19,11 +19,13 @@ package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,11 +36,21 @@ final class StackFrame implements JSONCaching {
     private static final String METHOD_NAME = "method_name";
     private static final String IS_NATIVE = "is_native";
     private static final String IS_EXTERNAL = "is_external";
+    private static final int FIELD_FILE = 1;
+    private static final int FIELD_LINE_NUMBER = 2;
+    private static final int FIELD_CLASS_NAME = 3;
+    private static final int FIELD_METHOD_NAME = 4;
+    private static final int FIELD_IS_NATIVE = 5;
     @Nullable private final String mFileName;
     private final int mLineNumber;
     @Nullable private final String mClassName;
     @Nullable private final String mMethodName;
     private final boolean mIsNativeMethod;
+    // Computed when first serialized, so serializing the frame again doesn't redo it
+    private int mClassification = UNCLASSIFIED;
+    private static final int UNCLASSIFIED = 0;
+    private static final int IN_APP = 1;
+    private static final int EXTERNAL = 2;
 
     private StackFrame(@Nullable String fileName, int lineNumber, @Nullable String className, @Nullable String methodName, boolean isNativeMethod) {
         mFileName = fileName;
@@ -56,10 +68,18 @@ final class StackFrame implements JSONCaching {
         mIsNativeMethod = stackTraceElement.isNativeMethod();
     }
 
+    @NonNull
+    static StackFrame fromStackTraceElement(@NonNull StackTraceElement stackTraceElement) {
+        return new StackFrame(stackTraceElement);
+    }
+
+    /**
+     * Runs of recursion are collapsed; see {@link RecursionCompressor}.
+     */
     static List<StackFrame> stackFrames(StackTraceElement[] stackTraceElements) {
         ArrayList<StackFrame> result = new ArrayList<>();
 
-        for (StackTraceElement stackTraceElement : stackTraceElements) {
+        for (StackTraceElement stackTraceElement : RecursionCompressor.compress(stackTraceElements)) {
             StackFrame stackFrame = new StackFrame(stackTraceElement);
             result.add(stackFrame);
         }
@@ -87,34 +107,18 @@ final class StackFrame implements JSONCaching {
         return mIsNativeMethod;
     }
 
-    private static String getAppPackageName() {
-        return Crashlife.getClient().getContext().getPackageName();
-    }
-
     private boolean isExternal() {
-        String packageName = StackFrame.getAppPackageName();
-        String[] packageComponents = packageName.split("\\.");
-        String className = getClassName();
-        if (className == null) {
-            return true;
-        }
-        String[] frameClassComponents = className.split("\\.");
-        if (frameClassComponents.length < 2 || packageComponents.length < 2) {
-            return true; //probably dealing with C++
-        }
-        int countSame = 0;
-        for (int i = 0; i < frameClassComponents.length && i < packageComponents.length; i++) {
-            if (frameClassComponents[i].equals(packageComponents[i])) {
-                countSame++;
-            }
-            else {
-                break;
+        int classification = mClassification;
+        if (classification == UNCLASSIFIED) {
+            Client client = Crashlife.getClient();
+            if (client == null) {
+                return true;
             }
+            classification = client.getStackFrameClassifier().isInApp(getClassName()) ? IN_APP : EXTERNAL;
+            // Racing threads compute the same result, so there's no harm in them both storing it
+            mClassification = classification;
         }
-        if (countSame >= 2) {
-            return false;
-        }
-        return true;
+        return classification == EXTERNAL;
     }
 
     @NonNull
@@ -144,6 +148,17 @@ final class StackFrame implements JSONCaching {
         return result;
     }
 
+    public void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        JsonUtils.safeWrite(writer, FILE, getFileName());
+        writer.name(LINE_NUMBER).value(getLineNumber());
+        JsonUtils.safeWrite(writer, CLASS_NAME, getClassName());
+        JsonUtils.safeWrite(writer, METHOD_NAME, getMethodName());
+        writer.name(IS_NATIVE).value(isNativeMethod());
+        writer.name(IS_EXTERNAL).value(isExternal());
+        writer.endObject();
+    }
+
     @NonNull
     private static StackFrame fromCacheJson(JSONObject jsonObject) {
         String fileName;
@@ -182,4 +197,43 @@ final class StackFrame implements JSONCaching {
 
         return result;
     }
-}
\ No newline at end of file
+
+    void writeCacheBinary(@NonNull BinaryCacheWriter writer) throws IOException {
+        writer.writeString(FIELD_FILE, mFileName);
+        writer.writeInt(FIELD_LINE_NUMBER, mLineNumber);
+        writer.writeString(FIELD_CLASS_NAME, mClassName);
+        writer.writeString(FIELD_METHOD_NAME, mMethodName);
+        writer.writeBoolean(FIELD_IS_NATIVE, mIsNativeMethod);
+    }
+
+    @NonNull
+    static StackFrame readCacheBinary(@NonNull BinaryCacheReader reader) throws IOException {
+        String fileName = null;
+        int lineNumber = 0;
+        String className = null;
+        String methodName = null;
+        boolean isNativeMethod = false;
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_FILE:
+                    fileName = reader.readString();
+                    break;
+                case FIELD_LINE_NUMBER:
+                    lineNumber = reader.readInt();
+                    break;
+                case FIELD_CLASS_NAME:
+                    className = reader.readString();
+                    break;
+                case FIELD_METHOD_NAME:
+                    methodName = reader.readString();
+                    break;
+                case FIELD_IS_NATIVE:
+                    isNativeMethod = reader.readBoolean();
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        return new StackFrame(fileName, lineNumber, className, methodName, isNativeMethod);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells stack frames of the app's own code from those of libraries and the platform, by the
+ * package of the frame's class.
+ *
+ * The in-app packages are built into a trie over the characters of their names once, up front,
+ * so classifying a class name is a single walk down it. Results are cached per class name too,
+ * since the same classes turn up on frame after frame.
+ *
+ * A package matches itself and everything under it: "com.example" matches "com.example.Foo"
+ * and "com.example.ui.Bar", but not "com.examples.Foo".
+ */
+final class StackFrameClassifier {
+    // Plenty for the distinct classes in a few dumps; past it, results just aren't cached
+    private static final int MAX_CACHED_CLASS_NAMES = 4096;
+
+    private static final class Node {
+        @NonNull char[] mChars = new char[0]; // Sorted
+        @NonNull Node[] mChildren = new Node[0];
+        boolean mIsPackageEnd;
+
+        @Nullable
+        Node child(char c) {
+            int i = Arrays.binarySearch(mChars, c);
+            return i < 0 ? null : mChildren[i];
+        }
+
+        @NonNull
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(mChars, c);
+            if (i >= 0) {
+                return mChildren[i];
+            }
+            i = -i - 1;
+            Node child = new Node();
+            char[] chars = new char[mChars.length + 1];
+            Node[] children = new Node[mChildren.length + 1];
+            System.arraycopy(mChars, 0, chars, 0, i);
+            System.arraycopy(mChildren, 0, children, 0, i);
+            chars[i] = c;
+            children[i] = child;
+            System.arraycopy(mChars, i, chars, i + 1, mChars.length - i);
+            System.arraycopy(mChildren, i, children, i + 1, mChildren.length - i);
+            mChars = chars;
+            mChildren = children;
+            return child;
+        }
+    }
+
+    @NonNull private final Node mRoot = new Node();
+    @NonNull private final ConcurrentHashMap<String, Boolean> mCache = new ConcurrentHashMap<>();
+
+    private StackFrameClassifier(@NonNull List<String> inAppPackages) {
+        for (String inAppPackage : inAppPackages) {
+            Node node = mRoot;
+            for (int i = 0; i < inAppPackage.length(); i++) {
+                node = node.addChild(inAppPackage.charAt(i));
+            }
+            node.mIsPackageEnd = true;
+        }
+    }
+
+    /**
+     * @param appPackageName The app's package name. Unless in-app packages are given, classes sharing
+     *                       its first two components with it are in-app.
+     * @param inAppPackages The packages whose classes are in-app, if not the default
+     */
+    @NonNull
+    static StackFrameClassifier create(@Nullable String appPackageName, @NonNull List<String> inAppPackages) {
+        List<String> packages = new ArrayList<>();
+        for (String inAppPackage : inAppPackages) {
+            String trimmed = inAppPackage.endsWith(".") ? inAppPackage.substring(0, inAppPackage.length() - 1) : inAppPackage;
+            if (!trimmed.isEmpty()) {
+                packages.add(trimmed);
+            }
+        }
+        if (packages.isEmpty() && appPackageName != null) {
+            String[] components = appPackageName.split("\\.");
+            if (components.length >= 2) {
+                packages.add(components[0] + "." + components[1]);
+            }
+        }
+        return new StackFrameClassifier(packages);
+    }
+
+    boolean isInApp(@Nullable String className) {
+        if (className == null) {
+            return false;
+        }
+        Boolean cached = mCache.get(className);
+        if (cached != null) {
+            return cached;
+        }
+        boolean inApp = matches(className);
+        if (mCache.size() < MAX_CACHED_CLASS_NAMES) {
+            mCache.put(className, inApp);
+        }
+        return inApp;
+    }
+
+    private boolean matches(@NonNull String className) {
+        Node node = mRoot;
+        for (int i = 0; i < className.length(); i++) {
+            node = node.child(className.charAt(i));
+            if (node == null) {
+                return false;
+            }
+            if (node.mIsPackageEnd && i + 1 < className.length() && className.charAt(i + 1) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
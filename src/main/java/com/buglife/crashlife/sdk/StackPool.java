@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Deduplicates the stacks of a thread dump. Most threads in a dump sit idle in one of a few
+ * identical stacks, so the frames and stacks of an event are pooled: equal stack trace elements
+ * share one {@link StackFrame}, and equal stacks share one list.
+ *
+ * The binary cache format stores pooled stacks once, in a table that threads refer to by index:
+ *   frame  (1, repeated)  a stack frame, numbered in order from 0
+ *   stack  (2, repeated)  a stack, as repeated frame indexes (1); numbered in order from 0
+ * The table has to come before the threads that refer to it. Payloads sent to the server still
+ * spell out every thread's frames.
+ */
+final class StackPool {
+    private static final int FIELD_FRAME = 1;
+    private static final int FIELD_STACK = 2;
+    private static final int FIELD_STACK_FRAME_INDEX = 1;
+
+    @NonNull private final HashMap<StackTraceElement, StackFrame> mFrames = new HashMap<>();
+    // Keyed by lists of pooled frames, which compare by identity, so equal stacks are equal lists
+    @NonNull private final HashMap<List<StackFrame>, List<StackFrame>> mStacks = new HashMap<>();
+
+    /**
+     * @return The pooled stack for the elements, with runs of recursion collapsed; it mustn't be modified
+     */
+    @NonNull
+    List<StackFrame> intern(@NonNull StackTraceElement[] stackTraceElements) {
+        StackTraceElement[] elements = RecursionCompressor.compress(stackTraceElements);
+        ArrayList<StackFrame> stack = new ArrayList<>(elements.length);
+        for (StackTraceElement element : elements) {
+            StackFrame frame = mFrames.get(element);
+            if (frame == null) {
+                frame = StackFrame.fromStackTraceElement(element);
+                mFrames.put(element, frame);
+            }
+            stack.add(frame);
+        }
+        return intern(stack);
+    }
+
+    @NonNull
+    private List<StackFrame> intern(@NonNull List<StackFrame> stack) {
+        List<StackFrame> pooled = mStacks.get(stack);
+        if (pooled == null) {
+            pooled = Collections.unmodifiableList(stack);
+            mStacks.put(stack, pooled);
+        }
+        return pooled;
+    }
+
+    /**
+     * Writes the distinct stacks of the threads, each once.
+     * @return The index of each stack in the table, by identity
+     */
+    @NonNull
+    static IdentityHashMap<List<StackFrame>, Integer> writeTable(@NonNull BinaryCacheWriter writer, @NonNull List<ThreadData> threadDatas) throws IOException {
+        IdentityHashMap<StackFrame, Integer> frameIndexes = new IdentityHashMap<>();
+        IdentityHashMap<List<StackFrame>, Integer> stackIndexes = new IdentityHashMap<>();
+        for (ThreadData threadData : threadDatas) {
+            for (StackFrame frame : threadData.getStackframes()) {
+                if (!frameIndexes.containsKey(frame)) {
+                    frameIndexes.put(frame, frameIndexes.size());
+                    writer.beginObject(FIELD_FRAME);
+                    frame.writeCacheBinary(writer);
+                    writer.endObject();
+                }
+            }
+        }
+        for (ThreadData threadData : threadDatas) {
+            List<StackFrame> stack = threadData.getStackframes();
+            if (!stackIndexes.containsKey(stack)) {
+                stackIndexes.put(stack, stackIndexes.size());
+                writer.beginObject(FIELD_STACK);
+                for (StackFrame frame : stack) {
+                    writer.writeInt(FIELD_STACK_FRAME_INDEX, frameIndexes.get(frame));
+                }
+                writer.endObject();
+            }
+        }
+        return stackIndexes;
+    }
+
+    /**
+     * Reads a table written by {@link #writeTable(BinaryCacheWriter, List)}, pooling its stacks.
+     * @return The stacks, by index
+     */
+    @NonNull
+    static List<List<StackFrame>> readTable(@NonNull BinaryCacheReader reader) throws IOException {
+        List<StackFrame> frames = new ArrayList<>();
+        List<List<StackFrame>> stacks = new ArrayList<>();
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_FRAME:
+                    frames.add(StackFrame.readCacheBinary(reader));
+                    break;
+                case FIELD_STACK:
+                    ArrayList<StackFrame> stack = new ArrayList<>();
+                    for (int frameTag = reader.nextTag(); frameTag != 0; frameTag = reader.nextTag()) {
+                        if (BinaryCacheReader.fieldNumber(frameTag) != FIELD_STACK_FRAME_INDEX) {
+                            reader.skip(frameTag);
+                            continue;
+                        }
+                        int index = reader.readInt();
+                        if (index < 0 || index >= frames.size()) {
+                            throw new IOException("Stack frame index out of range: " + index);
+                        }
+                        stack.add(frames.get(index));
+                    }
+                    stacks.add(Collections.unmodifiableList(stack));
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        return stacks;
+    }
+}
@@ -18,44 +18,61 @@
 package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
+import android.util.JsonWriter;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 
 final class Submitter {
     Submitter() {
     }
 
-    void submitEvents(@NonNull String apiKey, @NonNull SessionSnapshot currentSession, @NonNull List<Event> events, @NonNull Runnable success, @NonNull Runnable failure) {
-        JSONObject params = startingParams(apiKey, currentSession);
-
-        JsonUtils.tryPut(params, "occurrences", JsonUtils.listToCacheJson(events));
-
-        String paramString = params.toString();
+    void submitEvents(@NonNull final String apiKey, @NonNull final SessionSnapshot currentSession, @NonNull final List<Event> events, @NonNull Runnable success, @NonNull Runnable failure) {
+        // Each event is written straight to the connection as it is serialized, rather than being
+        // built up as a JSON tree and then a String first.
+        AsyncHttpTask.RequestBody body = new AsyncHttpTask.RequestBody() {
+            @Override
+            public void writeTo(@NonNull Writer writer) throws IOException {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                writeStartingParams(jsonWriter, apiKey, currentSession);
+                jsonWriter.name("occurrences");
+                JsonUtils.writeCacheJsonList(jsonWriter, events);
+                jsonWriter.endObject();
+                jsonWriter.flush();
+            }
+        };
         String endpoint = "/api/v1/events.json";
-        AsyncHttpTask task = new AsyncHttpTask(paramString, success, failure, endpoint);
+        AsyncHttpTask task = new AsyncHttpTask(body, success, failure, endpoint);
         task.execute();
     }
 
-    void submitClientEvent(@NonNull String apiKey, @NonNull SessionSnapshot currentSession, @NonNull JSONObject clientEventParams, @NonNull Runnable success, @NonNull Runnable failure) {
-        JSONObject params = startingParams(apiKey, currentSession);
-
-        JsonUtils.tryPut(params, "client_event", clientEventParams);
-
-        String paramString = params.toString();
+    void submitClientEvent(@NonNull final String apiKey, @NonNull final SessionSnapshot currentSession, @NonNull final JSONObject clientEventParams, @NonNull Runnable success, @NonNull Runnable failure) {
+        AsyncHttpTask.RequestBody body = new AsyncHttpTask.RequestBody() {
+            @Override
+            public void writeTo(@NonNull Writer writer) throws IOException {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                writeStartingParams(jsonWriter, apiKey, currentSession);
+                jsonWriter.name("client_event");
+                JsonUtils.writeJson(jsonWriter, clientEventParams);
+                jsonWriter.endObject();
+                jsonWriter.flush();
+            }
+        };
         String endpoint = "/api/v1/client_events.json";
-        AsyncHttpTask task = new AsyncHttpTask(paramString, success, failure, endpoint);
+        AsyncHttpTask task = new AsyncHttpTask(body, success, failure, endpoint);
         task.execute();
     }
 
-    private JSONObject startingParams(@NonNull String apiKey, @NonNull SessionSnapshot currentSession) {
-        JSONObject params = new JSONObject();
-        JsonUtils.tryPut(params, "api_key", apiKey);
-
-        JSONObject appJson = currentSession.toCacheJson();
-        JsonUtils.tryPut(params, "app", appJson);
-        return params;
+    /**
+     * Begins the params object with the fields every request carries. The caller ends it.
+     */
+    private static void writeStartingParams(@NonNull JsonWriter writer, @NonNull String apiKey, @NonNull SessionSnapshot currentSession) throws IOException {
+        writer.beginObject();
+        writer.name("api_key").value(apiKey);
+        writer.name("app");
+        JsonUtils.writeJson(writer, currentSession.toCacheJson());
     }
 }
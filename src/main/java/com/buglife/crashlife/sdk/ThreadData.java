@@ -19,11 +19,13 @@ package com.buglife.crashlife.sdk;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +42,14 @@ final class ThreadData implements JSONCaching {
     private static final String IS_ALIVE = "is_alive";
     private static final String IS_DAEMON = "is_daemon";
     private static final String IS_INTERRUPTED = "is_interrupted";
+    private static final int FIELD_ID = 1;
+    private static final int FIELD_NAME = 2;
+    private static final int FIELD_STACK_INDEX = 3;
+    private static final int FIELD_PRIORITY = 4;
+    private static final int FIELD_STATE_ORDINAL = 5;
+    private static final int FIELD_IS_ALIVE = 6;
+    private static final int FIELD_IS_DAEMON = 7;
+    private static final int FIELD_IS_INTERRUPTED = 8;
     private final long mId;
     @Nullable private final String mName;
     @NonNull private final List<StackFrame> mStackframes;
@@ -78,13 +88,16 @@ final class ThreadData implements JSONCaching {
         mIsInterrupted = isInterrupted;
     }
 
-    static List<ThreadData> threadDatas(Map<Thread, StackTraceElement[]> threadStackTraces) {
+    /**
+     * @param stackPool Where the threads' stacks are pooled, so threads with equal stacks share them
+     */
+    static List<ThreadData> threadDatas(Map<Thread, StackTraceElement[]> threadStackTraces, @NonNull StackPool stackPool) {
         ArrayList<ThreadData> result = new ArrayList<>();
 
         for (Map.Entry<Thread, StackTraceElement[]> entry : threadStackTraces.entrySet()) {
             Thread thread = entry.getKey();
             StackTraceElement[] stackTraceElements = entry.getValue();
-            List<StackFrame> stackFrames = StackFrame.stackFrames(stackTraceElements);
+            List<StackFrame> stackFrames = stackPool.intern(stackTraceElements);
             ThreadData threadData = new ThreadData(thread, stackFrames);
             result.add(threadData);
         }
@@ -125,6 +138,20 @@ final class ThreadData implements JSONCaching {
         return result;
     }
 
+    public void writeCacheJson(@NonNull JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(ID).value(mId);
+        JsonUtils.safeWrite(writer, NAME, mName);
+        writer.name(STACK_FRAMES);
+        JsonUtils.writeCacheJsonList(writer, mStackframes);
+        writer.name(PRIORITY).value(mPriority);
+        writer.name(STATE_ORDINAL).value(mState != null ? mState.ordinal() : 0);
+        writer.name(IS_ALIVE).value(mIsAlive);
+        writer.name(IS_DAEMON).value(mIsDaemon);
+        writer.name(IS_INTERRUPTED).value(mIsInterrupted);
+        writer.endObject();
+    }
+
     @NonNull
     static ThreadData fromCacheJson(JSONObject jsonObject) {
         long id;
@@ -182,4 +209,76 @@ final class ThreadData implements JSONCaching {
 
         return result;
     }
+
+    /**
+     * @param stackIndex Where the thread's stack is in the event's {@link StackPool} table
+     */
+    void writeCacheBinary(@NonNull BinaryCacheWriter writer, int stackIndex) throws IOException {
+        writer.writeLong(FIELD_ID, mId);
+        writer.writeString(FIELD_NAME, mName);
+        writer.writeInt(FIELD_STACK_INDEX, stackIndex);
+        writer.writeInt(FIELD_PRIORITY, mPriority);
+        if (mState != null) {
+            writer.writeInt(FIELD_STATE_ORDINAL, mState.ordinal());
+        }
+        writer.writeBoolean(FIELD_IS_ALIVE, mIsAlive);
+        writer.writeBoolean(FIELD_IS_DAEMON, mIsDaemon);
+        writer.writeBoolean(FIELD_IS_INTERRUPTED, mIsInterrupted);
+    }
+
+    /**
+     * @param stacks The event's {@link StackPool} table, which every thread's stack is in
+     */
+    @NonNull
+    static ThreadData readCacheBinary(@NonNull BinaryCacheReader reader, @NonNull List<List<StackFrame>> stacks) throws IOException {
+        long id = 0;
+        String name = null;
+        List<StackFrame> stackFrames = null;
+        int priority = 0;
+        Thread.State state = null;
+        boolean isAlive = true;
+        boolean isDaemon = false;
+        boolean isInterrupted = false;
+        for (int tag = reader.nextTag(); tag != 0; tag = reader.nextTag()) {
+            switch (BinaryCacheReader.fieldNumber(tag)) {
+                case FIELD_ID:
+                    id = reader.readLong();
+                    break;
+                case FIELD_NAME:
+                    name = reader.readString();
+                    break;
+                case FIELD_STACK_INDEX:
+                    int stackIndex = reader.readInt();
+                    if (stackIndex < 0 || stackIndex >= stacks.size()) {
+                        throw new IOException("Stack index out of range: " + stackIndex);
+                    }
+                    stackFrames = stacks.get(stackIndex);
+                    break;
+                case FIELD_PRIORITY:
+                    priority = reader.readInt();
+                    break;
+                case FIELD_STATE_ORDINAL:
+                    int stateOrdinal = reader.readInt();
+                    if (stateOrdinal >= 0 && stateOrdinal < Thread.State.values().length) {
+                        state = Thread.State.values()[stateOrdinal];
+                    }
+                    break;
+                case FIELD_IS_ALIVE:
+                    isAlive = reader.readBoolean();
+                    break;
+                case FIELD_IS_DAEMON:
+                    isDaemon = reader.readBoolean();
+                    break;
+                case FIELD_IS_INTERRUPTED:
+                    isInterrupted = reader.readBoolean();
+                    break;
+                default:
+                    reader.skip(tag);
+            }
+        }
+        if (stackFrames == null) {
+            throw new IOException("Thread without a stack index");
+        }
+        return new ThreadData(id, name, stackFrames, priority, state, isAlive, isDaemon, isInterrupted);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Decides which threads' stacks are attached to events for logged exceptions. Walking every thread's
+ * stack is expensive in apps with many threads, and makes for large events, so it can be limited
+ * or rate limited. Crashes always get every thread.
+ *
+ * Pass an instance to {@link CrashlifeOptions.Builder#threadDumpPolicy(ThreadDumpPolicy)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ThreadDumpPolicy {
+    public enum Mode {
+        /** Only the thread that logged the exception */
+        LOGGING_THREAD,
+        /** The logging thread, the main thread, and a few others most likely to be relevant */
+        SAMPLED,
+        /** Every thread, at most once per full dump interval; sampled in between */
+        ALL_THREADS
+    }
+
+    static final int DEFAULT_MAX_SAMPLED_THREADS = 8;
+    static final int DEFAULT_MAX_FRAMES_PER_THREAD = 128;
+    static final long DEFAULT_MIN_FULL_DUMP_INTERVAL_MILLIS = 10 * 1000;
+
+    @NonNull private final Mode mMode;
+    private final int mMaxSampledThreads;
+    private final int mMaxFramesPerThread;
+    private final long mMinFullDumpIntervalMillis;
+
+    private ThreadDumpPolicy(Builder builder) {
+        mMode = builder.mMode;
+        mMaxSampledThreads = builder.mMaxSampledThreads;
+        mMaxFramesPerThread = builder.mMaxFramesPerThread;
+        mMinFullDumpIntervalMillis = builder.mMinFullDumpIntervalMillis;
+    }
+
+    @NonNull
+    Mode getMode() {
+        return mMode;
+    }
+
+    int getMaxSampledThreads() {
+        return mMaxSampledThreads;
+    }
+
+    int getMaxFramesPerThread() {
+        return mMaxFramesPerThread;
+    }
+
+    long getMinFullDumpIntervalMillis() {
+        return mMinFullDumpIntervalMillis;
+    }
+
+    public static final class Builder {
+        @NonNull private final Mode mMode;
+        private int mMaxSampledThreads = DEFAULT_MAX_SAMPLED_THREADS;
+        private int mMaxFramesPerThread = DEFAULT_MAX_FRAMES_PER_THREAD;
+        private long mMinFullDumpIntervalMillis = DEFAULT_MIN_FULL_DUMP_INTERVAL_MILLIS;
+
+        public Builder(@NonNull Mode mode) {
+            mMode = mode;
+        }
+
+        /**
+         * Sets how many threads a sampled dump includes, besides the logging thread and the main thread.
+         * Threads that are running or blocked are picked before waiting ones.
+         */
+        @NonNull
+        public Builder maxSampledThreads(int maxSampledThreads) {
+            if (maxSampledThreads < 0) {
+                throw new IllegalArgumentException("maxSampledThreads must not be negative");
+            }
+            mMaxSampledThreads = maxSampledThreads;
+            return this;
+        }
+
+        /**
+         * Sets how many frames are kept per thread, innermost first.
+         */
+        @NonNull
+        public Builder maxFramesPerThread(int maxFramesPerThread) {
+            if (maxFramesPerThread < 1) {
+                throw new IllegalArgumentException("maxFramesPerThread must be positive");
+            }
+            mMaxFramesPerThread = maxFramesPerThread;
+            return this;
+        }
+
+        /**
+         * Sets how often, at most, every thread is dumped in {@link Mode#ALL_THREADS}. Events logged in
+         * between get a sampled dump.
+         */
+        @NonNull
+        public Builder minFullDumpInterval(long minFullDumpIntervalMillis) {
+            if (minFullDumpIntervalMillis < 0) {
+                throw new IllegalArgumentException("minFullDumpIntervalMillis must not be negative");
+            }
+            mMinFullDumpIntervalMillis = minFullDumpIntervalMillis;
+            return this;
+        }
+
+        @NonNull
+        public ThreadDumpPolicy build() {
+            return new ThreadDumpPolicy(this);
+        }
+    }
+}
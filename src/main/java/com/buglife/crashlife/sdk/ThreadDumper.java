@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects thread stacks for logged exceptions, as a {@link ThreadDumpPolicy} says.
+ *
+ * The logging thread's own stack is taken on that thread, when the exception is logged, since by the
+ * time the event is built it has moved on. Everything else is taken on the event pipeline's thread.
+ * Sampled dumps pick their threads without walking any stacks, and then walk only the ones picked.
+ */
+final class ThreadDumper {
+    // Crashlife's own threads, and the frames of its logging calls, aren't worth reporting. Frames are
+    // matched by the SDK's package prefix, dot included, so that an app's com.buglife.crashlife.sdkdemo
+    // isn't; threads by their exact names, since apps can name threads under Crashlife's prefix too.
+    private static final String SDK_PACKAGE_PREFIX = "com.buglife.crashlife.sdk.";
+    private static final Set<String> SDK_THREAD_NAMES = new HashSet<>(Arrays.asList(Client.PERSISTENCE_THREAD_NAME,
+            Client.EVENTS_THREAD_NAME, CrashCatcher.STAGE_THREAD_NAME, HangWatchdog.THREAD_NAME));
+
+    @NonNull private final ThreadDumpPolicy mPolicy;
+    @NonNull private final AtomicLong mLastFullDumpAt = new AtomicLong(Long.MIN_VALUE);
+
+    ThreadDumper(@NonNull ThreadDumpPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Takes the calling thread's stack, minus the frames of Crashlife and of the stack walk itself.
+     */
+    @NonNull
+    StackTraceElement[] captureCallingThread() {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        int first = 0;
+        while (first < stack.length && isOverhead(stack[first])) {
+            first++;
+        }
+        if (first == stack.length) {
+            first = 0;
+        }
+        return Arrays.copyOfRange(stack, first, Math.min(stack.length, first + mPolicy.getMaxFramesPerThread()));
+    }
+
+    private static boolean isOverhead(@NonNull StackTraceElement frame) {
+        String className = frame.getClassName();
+        return className.startsWith(SDK_PACKAGE_PREFIX) || className.equals("java.lang.Thread") || className.equals("dalvik.system.VMStack");
+    }
+
+    /**
+     * @param loggingThread The thread that logged the exception
+     * @param loggingThreadStack Its stack, from {@link #captureCallingThread()}
+     * @return The stacks to attach to the event; the logging thread's first
+     */
+    @NonNull
+    Map<Thread, StackTraceElement[]> dump(@NonNull Thread loggingThread, @NonNull StackTraceElement[] loggingThreadStack) {
+        LinkedHashMap<Thread, StackTraceElement[]> result = new LinkedHashMap<>();
+        result.put(loggingThread, loggingThreadStack);
+        switch (mPolicy.getMode()) {
+            case LOGGING_THREAD:
+                break;
+            case ALL_THREADS:
+                if (claimFullDump()) {
+                    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                        if (entry.getKey() != loggingThread && !isSdkThread(entry.getKey())) {
+                            result.put(entry.getKey(), cap(entry.getValue()));
+                        }
+                    }
+                    break;
+                }
+                addSample(result, loggingThread);
+                break;
+            case SAMPLED:
+            default:
+                addSample(result, loggingThread);
+                break;
+        }
+        return result;
+    }
+
+    private boolean claimFullDump() {
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastFullDumpAt.get();
+        if (last != Long.MIN_VALUE && now - last < mPolicy.getMinFullDumpIntervalMillis()) {
+            return false;
+        }
+        return mLastFullDumpAt.compareAndSet(last, now);
+    }
+
+    private void addSample(@NonNull Map<Thread, StackTraceElement[]> result, @NonNull Thread loggingThread) {
+        Looper mainLooper = Looper.getMainLooper();
+        Thread mainThread = mainLooper == null ? null : mainLooper.getThread();
+        if (mainThread != null && mainThread != loggingThread) {
+            result.put(mainThread, cap(mainThread.getStackTrace()));
+        }
+        List<Thread> candidates = new ArrayList<>();
+        for (Thread thread : liveThreads()) {
+            if (thread != loggingThread && thread != mainThread && !isSdkThread(thread)) {
+                candidates.add(thread);
+            }
+        }
+        // Sorted by state only, so the order among equally interesting threads is the enumeration order
+        Collections.sort(candidates, new Comparator<Thread>() {
+            @Override
+            public int compare(Thread lhs, Thread rhs) {
+                return interest(rhs) - interest(lhs);
+            }
+        });
+        for (int i = 0; i < candidates.size() && i < mPolicy.getMaxSampledThreads(); i++) {
+            Thread thread = candidates.get(i);
+            result.put(thread, cap(thread.getStackTrace()));
+        }
+    }
+
+    // Threads that are doing something, or waiting on a lock, say more about an exception than idle ones
+    private static int interest(@NonNull Thread thread) {
+        Thread.State state = thread.getState();
+        int interest = state == Thread.State.BLOCKED ? 3 : (state == Thread.State.RUNNABLE ? 2 : 0);
+        return thread.isDaemon() ? interest : interest + 1;
+    }
+
+    @NonNull
+    private static List<Thread> liveThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root != null && root.getParent() != null) {
+            root = root.getParent();
+        }
+        if (root == null) {
+            return Collections.emptyList();
+        }
+        // The count is an estimate, so leave room for threads started in the meantime
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int count = root.enumerate(threads, true);
+        return Arrays.asList(threads).subList(0, count);
+    }
+
+    private static boolean isSdkThread(@NonNull Thread thread) {
+        return SDK_THREAD_NAMES.contains(thread.getName());
+    }
+
+    @NonNull
+    private StackTraceElement[] cap(@Nullable StackTraceElement[] stack) {
+        if (stack == null) {
+            return new StackTraceElement[0];
+        }
+        return stack.length <= mPolicy.getMaxFramesPerThread() ? stack : Arrays.copyOf(stack, mPolicy.getMaxFramesPerThread());
+    }
+}
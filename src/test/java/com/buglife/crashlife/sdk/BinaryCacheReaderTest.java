@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class BinaryCacheReaderTest {
+    private static final long[] VALUES = {0, 1, -1, 63, -64, 64, -65, 127, 128, 16383, 16384,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final BinaryCacheWriter mWriter = new BinaryCacheWriter(mBytes);
+
+    private BinaryCacheReader reader() {
+        return new BinaryCacheReader(new ByteArrayInputStream(mBytes.toByteArray()));
+    }
+
+    @Test
+    public void varintsRoundTrip() throws IOException {
+        for (long value : VALUES) {
+            mWriter.writeVarint(value);
+        }
+        BinaryCacheReader reader = reader();
+        for (long value : VALUES) {
+            assertThat(reader.readVarint()).isEqualTo(value);
+        }
+    }
+
+    @Test
+    public void varintsTakeSevenBitsPerByte() throws IOException {
+        mWriter.writeVarint(127);
+        assertThat(mBytes.toByteArray()).containsExactly(0x7f);
+        mBytes.reset();
+        mWriter.writeVarint(128);
+        assertThat(mBytes.toByteArray()).containsExactly(0x80, 0x01);
+        mBytes.reset();
+        mWriter.writeVarint(-1);
+        assertThat(mBytes.toByteArray()).hasSize(10);
+    }
+
+    @Test
+    public void fieldsRoundTrip() throws IOException {
+        for (long value : VALUES) {
+            mWriter.writeLong(1, value);
+        }
+        mWriter.writeInt(2, -42);
+        mWriter.writeBoolean(3, true);
+        mWriter.writeBoolean(4, false);
+        mWriter.writeBytes(5, new byte[] {1, 2, 3});
+        mWriter.endObject();
+
+        BinaryCacheReader reader = reader();
+        for (long value : VALUES) {
+            assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(1);
+            assertThat(reader.readLong()).isEqualTo(value);
+        }
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(2);
+        assertThat(reader.readInt()).isEqualTo(-42);
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(3);
+        assertThat(reader.readBoolean()).isTrue();
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(4);
+        assertThat(reader.readBoolean()).isFalse();
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(5);
+        assertThat(reader.readBytes()).containsExactly(1, 2, 3);
+        assertThat(reader.nextTag()).isEqualTo(0);
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() throws IOException {
+        String value = "com.buglife.crashlife.sdk.Client";
+        mWriter.writeString(1, value);
+        int firstSize = mBytes.size();
+        mWriter.writeString(1, value);
+        mWriter.writeString(1, "été 💥");
+        mWriter.writeString(1, value);
+        mWriter.endObject();
+
+        assertThat(mBytes.size() - firstSize).isLessThan(firstSize);
+        BinaryCacheReader reader = reader();
+        for (String expected : new String[] {value, value, "été 💥", value}) {
+            assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(1);
+            assertThat(reader.readString()).isEqualTo(expected);
+        }
+        assertThat(reader.nextTag()).isEqualTo(0);
+    }
+
+    @Test
+    public void nullStringsAreNotWritten() throws IOException {
+        mWriter.writeString(1, null);
+        mWriter.writeString(2, "");
+        mWriter.endObject();
+
+        BinaryCacheReader reader = reader();
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(2);
+        assertThat(reader.readString()).isEmpty();
+        assertThat(reader.nextTag()).isEqualTo(0);
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        mWriter.writeLong(7, 123456789L);
+        mWriter.writeBytes(8, new byte[] {9, 9, 9});
+        mWriter.beginObject(9);
+        mWriter.writeString(1, "defined while skipped");
+        mWriter.beginObject(2);
+        mWriter.writeBoolean(1, true);
+        mWriter.endObject();
+        mWriter.endObject();
+        mWriter.writeString(10, "defined while skipped");
+        mWriter.writeInt(1, 5);
+        mWriter.endObject();
+
+        BinaryCacheReader reader = reader();
+        for (int i = 0; i < 3; i++) {
+            reader.skip(reader.nextTag());
+        }
+        // The string was defined inside the skipped object, and is only referred to here
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(10);
+        assertThat(reader.readString()).isEqualTo("defined while skipped");
+        assertThat(BinaryCacheReader.fieldNumber(reader.nextTag())).isEqualTo(1);
+        assertThat(reader.readInt()).isEqualTo(5);
+        assertThat(reader.nextTag()).isEqualTo(0);
+    }
+
+    @Test
+    public void badStringReferencesAreRejected() throws IOException {
+        mWriter.writeVarint(3 << 1); // A reference to a string that was never defined
+        try {
+            reader().readString();
+            fail();
+        } catch (IOException e) {
+            assertThat(e).hasMessageContaining("Bad string reference");
+        }
+    }
+
+    @Test
+    public void truncatedInputIsRejected() throws IOException {
+        mWriter.writeBytes(1, new byte[] {1, 2, 3});
+        byte[] bytes = mBytes.toByteArray();
+        BinaryCacheReader reader = new BinaryCacheReader(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+        reader.nextTag();
+        try {
+            reader.readBytes();
+            fail();
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+}
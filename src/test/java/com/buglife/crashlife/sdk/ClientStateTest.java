@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientStateTest {
+    private static Attribute custom(String value) {
+        return new Attribute(value, Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM);
+    }
+
+    @Test
+    public void snapshotsDontSeeLaterChanges() {
+        ClientState initial = ClientState.initial();
+        ClientState withFlavor = initial.withAttribute("flavor", custom("free"));
+        ClientState withUser = withFlavor.withUserIdentifier("user@example.com");
+        ClientState withoutFlavor = withUser.withAttribute("flavor", null);
+
+        assertThat(initial.getAttributes().size()).isEqualTo(0);
+        assertThat(initial.getUserIdentifier()).isEmpty();
+        assertThat(withFlavor.getAttributes().get("flavor").getValue()).isEqualTo("free");
+        assertThat(withFlavor.getUserIdentifier()).isEmpty();
+        assertThat(withUser.getAttributes().get("flavor").getValue()).isEqualTo("free");
+        assertThat(withUser.getUserIdentifier()).isEqualTo("user@example.com");
+        assertThat(withoutFlavor.getAttributes().get("flavor")).isNull();
+        assertThat(withoutFlavor.getUserIdentifier()).isEqualTo("user@example.com");
+    }
+
+    @Test
+    public void changingHandedOutAttributesLeavesTheSnapshotAlone() {
+        ClientState state = ClientState.initial().withAttribute("flavor", custom("free"));
+        AttributeMap attributes = state.getAttributes();
+        attributes.put("flavor", custom("paid"));
+        attributes.put("build", custom("debug"));
+
+        assertThat(state.getAttributes().size()).isEqualTo(1);
+        assertThat(state.getAttributes().get("flavor").getValue()).isEqualTo("free");
+    }
+
+    @Test
+    public void attributeMapCopiesAreIndependent() {
+        AttributeMap original = new AttributeMap();
+        original.put("flavor", custom("free"));
+        AttributeMap copy = new AttributeMap(original);
+        copy.put("build", custom("debug"));
+        original.put("flavor", null);
+
+        assertThat(original.size()).isEqualTo(0);
+        assertThat(copy.size()).isEqualTo(2);
+        assertThat(copy.get("flavor").getValue()).isEqualTo("free");
+    }
+
+    @Test
+    public void putAllOverwritesExistingKeys() {
+        AttributeMap attributes = new AttributeMap();
+        attributes.put("flavor", custom("free"));
+        attributes.put("build", custom("debug"));
+        AttributeMap other = new AttributeMap();
+        other.put("flavor", custom("paid"));
+        other.put("region", custom("eu"));
+
+        attributes.putAll(other);
+        assertThat(attributes.size()).isEqualTo(3);
+        assertThat(attributes.get("flavor").getValue()).isEqualTo("paid");
+        assertThat(attributes.get("build").getValue()).isEqualTo("debug");
+
+        // Into an empty map, the other map's entries are taken over as is; changing either afterwards doesn't affect the other
+        AttributeMap empty = new AttributeMap();
+        empty.putAll(other);
+        other.put("region", custom("us"));
+        assertThat(empty.get("region").getValue()).isEqualTo("eu");
+    }
+
+    @Test
+    public void entrySetIsASnapshot() {
+        AttributeMap attributes = new AttributeMap();
+        attributes.put("flavor", custom("free"));
+        Set<Map.Entry<String, Attribute>> entries = attributes.entrySet();
+        attributes.put("build", custom("debug"));
+
+        assertThat(entries.size()).isEqualTo(1);
+        for (Map.Entry<String, Attribute> entry : entries) {
+            assertThat(entry.getKey()).isEqualTo("flavor");
+        }
+    }
+
+    @Test
+    public void attributesRoundTripThroughTheBinaryCache() throws IOException {
+        AttributeMap attributes = new AttributeMap();
+        attributes.put("flavor", custom("free"));
+        attributes.put("build", new Attribute("debug", Attribute.ValueType.STRING, Attribute.FLAG_SYSTEM));
+
+        AttributeMap decoded = AttributeMap.fromCacheBinary(attributes.toCacheBinary());
+        assertThat(decoded.size()).isEqualTo(2);
+        assertThat(decoded.get("flavor").getValue()).isEqualTo("free");
+        assertThat(decoded.get("flavor").getFlags()).isEqualTo(Attribute.FLAG_CUSTOM);
+        assertThat(decoded.get("build").getFlags()).isEqualTo(Attribute.FLAG_SYSTEM);
+    }
+}
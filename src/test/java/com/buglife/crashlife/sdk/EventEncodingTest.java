@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EventEncodingTest {
+    private static final String JSON = "{\"uuid\":\"3f1e2d4c-0000-4000-8000-000000000001\",\"message\":\"Logged from JSON\","
+            + "\"severity\":\"warning\",\"occurred_at\":\"2019-03-04T05:06:07+0000\","
+            + "\"attributes\":[{\"key\":\"flavor\",\"value\":\"free\",\"flags\":\"system\"}]}";
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        AttributeMap attributes = new AttributeMap();
+        attributes.put("flavor", new Attribute("free", Attribute.ValueType.STRING, Attribute.FLAG_CUSTOM));
+        attributes.put("build", new Attribute("free", Attribute.ValueType.STRING, Attribute.FLAG_SYSTEM));
+        Event event = Event.warning("Logged from binary", attributes, new ArrayList<Footprint>());
+        event.setTimestamp(new Date(1551675967000L));
+
+        byte[] payload = EventEncoding.encode(event);
+        assertThat(payload[0]).isEqualTo((byte) 0x02);
+
+        Event decoded = EventEncoding.decode(payload);
+        assertThat(decoded.getUuid()).isEqualTo(event.getUuid());
+        assertThat(decoded.getMessage()).isEqualTo("Logged from binary");
+        assertThat(decoded.getSeverity()).isEqualTo(Event.Severity.WARNING);
+        assertThat(decoded.getTimestamp()).isEqualTo(new Date(1551675967000L));
+        assertThat(decoded.getAttributeMap().size()).isEqualTo(2);
+        assertThat(decoded.getAttributeMap().get("flavor").getValue()).isEqualTo("free");
+        assertThat(decoded.getAttributeMap().get("build").getFlags()).isEqualTo(Attribute.FLAG_SYSTEM);
+        assertThat(decoded.getFootprints()).isEmpty();
+    }
+
+    @Test
+    public void plainJsonIsDecoded() throws IOException {
+        assertDecodedFromJson(EventEncoding.decode(JSON.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void deflatedJsonIsDecoded() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(0x01);
+        DeflaterOutputStream output = new DeflaterOutputStream(bytes);
+        output.write(JSON.getBytes("UTF-8"));
+        output.close();
+
+        assertDecodedFromJson(EventEncoding.decode(bytes.toByteArray()));
+    }
+
+    @Test
+    public void invalidPayloadsAreRejected() {
+        for (byte[] payload : new byte[][] {{}, {0x7f, 1, 2}, "{\"uuid\":".getBytes()}) {
+            try {
+                EventEncoding.decode(payload);
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static void assertDecodedFromJson(Event event) {
+        assertThat(event.getUuid()).isEqualTo("3f1e2d4c-0000-4000-8000-000000000001");
+        assertThat(event.getMessage()).isEqualTo("Logged from JSON");
+        assertThat(event.getSeverity()).isEqualTo(Event.Severity.WARNING);
+        assertThat(event.getTimestamp()).isEqualTo(new Date(1551675967000L));
+        assertThat(event.getAttributeMap().get("flavor").getValue()).isEqualTo("free");
+        assertThat(event.getAttributeMap().get("flavor").getFlags()).isEqualTo(Attribute.FLAG_SYSTEM);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventPipelineTest {
+    // Drains are only counted; tests run queued tasks themselves, with flush()
+    private final List<Runnable> mScheduledDrains = new ArrayList<>();
+    private final Executor mWorker = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mScheduledDrains.add(command);
+        }
+    };
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void oneDrainIsScheduledAtATime() {
+        EventPipeline pipeline = new EventPipeline(mWorker, 10, CrashlifeOptions.EventOverflowPolicy.DROP_NEWEST, 0);
+        pipeline.submit(task("first"));
+        pipeline.submit(task("second"));
+        assertThat(mScheduledDrains).hasSize(1);
+
+        mScheduledDrains.get(0).run();
+        assertThat(mRan).containsExactly("first", "second");
+        pipeline.submit(task("third"));
+        assertThat(mScheduledDrains).hasSize(2);
+    }
+
+    @Test
+    public void dropNewestRejectsWhatDoesntFit() {
+        EventPipeline pipeline = new EventPipeline(mWorker, 2, CrashlifeOptions.EventOverflowPolicy.DROP_NEWEST, 0);
+        assertThat(pipeline.submit(task("first"))).isTrue();
+        assertThat(pipeline.submit(task("second"))).isTrue();
+        assertThat(pipeline.submit(task("third"))).isFalse();
+        assertThat(pipeline.getDroppedCount()).isEqualTo(1L);
+
+        pipeline.flush();
+        assertThat(mRan).containsExactly("first", "second");
+        assertThat(pipeline.submit(task("fourth"))).isTrue();
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewest() {
+        EventPipeline pipeline = new EventPipeline(mWorker, 2, CrashlifeOptions.EventOverflowPolicy.DROP_OLDEST, 0);
+        for (String name : new String[] {"first", "second", "third", "fourth"}) {
+            assertThat(pipeline.submit(task(name))).isTrue();
+        }
+        assertThat(pipeline.getDroppedCount()).isEqualTo(2L);
+
+        pipeline.flush();
+        assertThat(mRan).containsExactly("third", "fourth");
+        // Dropped tasks handed their permits on rather than leaking them
+        assertThat(pipeline.submit(task("fifth"))).isTrue();
+        assertThat(pipeline.submit(task("sixth"))).isTrue();
+    }
+
+    @Test
+    public void dropOldestDropsTheNewestWhenEveryTaskIsRunning() {
+        final EventPipeline pipeline = new EventPipeline(mWorker, 1, CrashlifeOptions.EventOverflowPolicy.DROP_OLDEST, 0);
+        final boolean[] submittedWhileRunning = new boolean[1];
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                submittedWhileRunning[0] = pipeline.submit(task("while running"));
+            }
+        });
+
+        pipeline.flush();
+        assertThat(submittedWhileRunning[0]).isFalse();
+        assertThat(mRan).isEmpty();
+        assertThat(pipeline.getDroppedCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void blockGivesUpAfterTheTimeout() {
+        EventPipeline pipeline = new EventPipeline(mWorker, 1, CrashlifeOptions.EventOverflowPolicy.BLOCK, 50);
+        pipeline.submit(task("first"));
+
+        long startedAt = System.nanoTime();
+        assertThat(pipeline.submit(task("second"))).isFalse();
+        assertThat((System.nanoTime() - startedAt) / 1000000).isGreaterThanOrEqualTo(50L);
+        assertThat(pipeline.getDroppedCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void blockWaitsForTheWorkerToMakeRoom() throws InterruptedException {
+        final EventPipeline pipeline = new EventPipeline(mWorker, 1, CrashlifeOptions.EventOverflowPolicy.BLOCK, 10000);
+        pipeline.submit(task("first"));
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pipeline.flush();
+            }
+        });
+        worker.start();
+
+        assertThat(pipeline.submit(task("second"))).isTrue();
+        worker.join();
+        assertThat(mRan).containsExactly("first");
+        assertThat(pipeline.getDroppedCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void failingTasksGiveBackTheirPermits() {
+        EventPipeline pipeline = new EventPipeline(mWorker, 1, CrashlifeOptions.EventOverflowPolicy.DROP_NEWEST, 0);
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected");
+            }
+        });
+        pipeline.flush();
+
+        assertThat(pipeline.submit(task("after"))).isTrue();
+    }
+}
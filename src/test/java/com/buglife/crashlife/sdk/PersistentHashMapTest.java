@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentHashMapTest {
+    /**
+     * A key with a chosen hash code, so that tests can make hashes collide in whole or in part.
+     */
+    private static final class Key {
+        private final String mName;
+        private final int mHash;
+
+        Key(String name, int hash) {
+            mName = name;
+            mHash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).mName.equals(mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    @Test
+    public void updatesLeaveEarlierVersionsAlone() {
+        PersistentHashMap<String, String> empty = PersistentHashMap.empty();
+        PersistentHashMap<String, String> one = empty.plus("flavor", "free");
+        PersistentHashMap<String, String> two = one.plus("build", "debug");
+        PersistentHashMap<String, String> changed = two.plus("flavor", "paid");
+        PersistentHashMap<String, String> removed = changed.minus("build");
+
+        assertThat(empty.size()).isEqualTo(0);
+        assertThat(one.size()).isEqualTo(1);
+        assertThat(one.get("build")).isNull();
+        assertThat(two.get("flavor")).isEqualTo("free");
+        assertThat(changed.size()).isEqualTo(2);
+        assertThat(changed.get("flavor")).isEqualTo("paid");
+        assertThat(removed.size()).isEqualTo(1);
+        assertThat(removed.get("build")).isNull();
+        assertThat(two.get("build")).isEqualTo("debug");
+    }
+
+    @Test
+    public void noOpUpdatesReturnTheSameMap() {
+        String value = "free";
+        PersistentHashMap<String, String> map = PersistentHashMap.<String, String>empty().plus("flavor", value);
+        assertThat(map.plus("flavor", value)).isSameAs(map);
+        assertThat(map.minus("build")).isSameAs(map);
+        assertThat(map.minus("flavor")).isSameAs(PersistentHashMap.empty());
+    }
+
+    @Test
+    public void collidingKeysShareANode() {
+        Key first = new Key("first", 42);
+        Key second = new Key("second", 42);
+        Key third = new Key("third", 42);
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.<Key, Integer>empty()
+                .plus(first, 1)
+                .plus(second, 2)
+                .plus(third, 3);
+        assertThat(map.size()).isEqualTo(3);
+        assertThat(map.get(second)).isEqualTo(2);
+        assertThat(map.get(new Key("fourth", 42))).isNull();
+
+        map = map.plus(second, 22).minus(first);
+        assertThat(map.size()).isEqualTo(2);
+        assertThat(map.get(first)).isNull();
+        assertThat(map.get(second)).isEqualTo(22);
+        assertThat(map.minus(second).minus(third).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void collisionNodesAreSplitByKeysThatDifferFurtherDown() {
+        // The hashes agree on the first three levels' bits, and part at the fourth
+        Key first = new Key("first", 1);
+        Key second = new Key("second", 1);
+        Key other = new Key("other", 1 | (1 << 15));
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.<Key, Integer>empty()
+                .plus(first, 1)
+                .plus(second, 2)
+                .plus(other, 3);
+        assertThat(map.size()).isEqualTo(3);
+        assertThat(map.get(first)).isEqualTo(1);
+        assertThat(map.get(second)).isEqualTo(2);
+        assertThat(map.get(other)).isEqualTo(3);
+
+        map = map.minus(first).minus(other);
+        assertThat(map.size()).isEqualTo(1);
+        assertThat(map.get(second)).isEqualTo(2);
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomUpdates() {
+        Random random = new Random(7);
+        HashMap<Key, Integer> expected = new HashMap<>();
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 5000; i++) {
+            int id = random.nextInt(1000);
+            Key key = key(id);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        HashMap<Key, Integer> iterated = new HashMap<>();
+        for (Map.Entry<Key, Integer> entry : map) {
+            assertThat(iterated.put(entry.getKey(), entry.getValue())).isNull();
+        }
+        assertThat(iterated).isEqualTo(expected);
+        for (int id = 0; id < 1000; id++) {
+            assertThat(map.get(key(id))).isEqualTo(expected.get(key(id)));
+        }
+    }
+
+    private static Key key(int id) {
+        // A third of the keys share a few hashes between them, so plenty collide
+        return new Key("key " + id, id % 3 == 0 ? id % 50 : id);
+    }
+
+    @Test
+    public void forEachVisitsInIterationOrderAndStopsWhenAsked() {
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 100; i++) {
+            map = map.plus("key " + i, i);
+        }
+        List<String> iterated = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : map) {
+            iterated.add(entry.getKey());
+        }
+
+        final List<String> visited = new ArrayList<>();
+        map.forEach(new PersistentHashMap.Visitor<String, Integer>() {
+            @Override
+            public boolean visit(String key, Integer value) {
+                visited.add(key);
+                return true;
+            }
+        });
+        assertThat(visited).isEqualTo(iterated);
+
+        visited.clear();
+        map.forEach(new PersistentHashMap.Visitor<String, Integer>() {
+            @Override
+            public boolean visit(String key, Integer value) {
+                visited.add(key);
+                return visited.size() < 10;
+            }
+        });
+        assertThat(visited).isEqualTo(iterated.subList(0, 10));
+    }
+}
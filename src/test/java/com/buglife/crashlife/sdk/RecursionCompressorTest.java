@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecursionCompressorTest {
+    private static StackTraceElement frame(String method) {
+        return new StackTraceElement("com.example.Recursive", method, "Recursive.java", method.length());
+    }
+
+    // Frames named by the letters of the spec, each group repeated as many times as the number after its "*", if any
+    private static StackTraceElement[] stack(String... spec) {
+        List<StackTraceElement> frames = new ArrayList<>();
+        for (String part : spec) {
+            String[] cycleAndRepeats = part.split("\\*");
+            int repeats = cycleAndRepeats.length > 1 ? Integer.parseInt(cycleAndRepeats[1]) : 1;
+            for (int i = 0; i < repeats; i++) {
+                for (char method : cycleAndRepeats[0].toCharArray()) {
+                    frames.add(frame(String.valueOf(method)));
+                }
+            }
+        }
+        return frames.toArray(new StackTraceElement[frames.size()]);
+    }
+
+    // The methods of the frames, with markers as their descriptions
+    private static List<String> methods(StackTraceElement[] stack) {
+        List<String> methods = new ArrayList<>();
+        for (StackTraceElement frame : stack) {
+            methods.add(frame.getMethodName());
+        }
+        return methods;
+    }
+
+    @Test
+    public void stacksWithoutRecursionAreReturnedAsIs() {
+        StackTraceElement[] stack = stack("abcdefghijklmnop");
+        assertThat(RecursionCompressor.compress(stack)).isSameAs(stack);
+        StackTraceElement[] shortStack = stack("a*3");
+        assertThat(RecursionCompressor.compress(shortStack)).isSameAs(shortStack);
+    }
+
+    @Test
+    public void tooFewRepeatsAreLeftAlone() {
+        StackTraceElement[] stack = stack("xy", "a*3", "bc*3", "z");
+        assertThat(RecursionCompressor.compress(stack)).isSameAs(stack);
+    }
+
+    @Test
+    public void singleFrameRecursionKeepsTheFramesAroundIt() {
+        StackTraceElement[] compressed = RecursionCompressor.compress(stack("xy", "f*100", "mr"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("x", "y", "f", "[previous frame repeated 99 more times]", "m", "r"));
+        assertThat(compressed[3].getClassName()).isEqualTo("...");
+        assertThat(compressed[3].getLineNumber()).isEqualTo(-1);
+        assertThat(compressed[2]).isEqualTo(frame("f"));
+    }
+
+    @Test
+    public void longerCyclesAreCollapsedWhole() {
+        StackTraceElement[] compressed = RecursionCompressor.compress(stack("x", "abc*50", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("x", "a", "b", "c", "[previous 3 frames repeated 49 more times]", "m"));
+    }
+
+    @Test
+    public void cyclesCutShortAtEitherEndAreKeptAfterTheMarker() {
+        // The overflow struck partway through the cycle, so the cycle as it's found starts there
+        StackTraceElement[] compressed = RecursionCompressor.compress(stack("c", "abc*20", "ab", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("c", "a", "b", "[previous 3 frames repeated 20 more times]", "m"));
+
+        // What's left of the cycle where it was entered isn't a repeat, and stays
+        compressed = RecursionCompressor.compress(stack("c", "abc*20", "a", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("c", "a", "b", "[previous 3 frames repeated 19 more times]", "c", "a", "m"));
+    }
+
+    @Test
+    public void theCycleCoveringTheMostFramesWins() {
+        // "a" repeats on its own too, but not as far as the cycle it's part of
+        StackTraceElement[] compressed = RecursionCompressor.compress(stack("aab*10", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("a", "a", "b", "[previous 3 frames repeated 9 more times]", "m"));
+
+        compressed = RecursionCompressor.compress(stack("a*8", "aab*2", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("a", "[previous frame repeated 9 more times]", "b", "a", "a", "b", "m"));
+    }
+
+    @Test
+    public void separateRunsAreEachCollapsed() {
+        StackTraceElement[] compressed = RecursionCompressor.compress(stack("f*10", "x", "gh*5", "m"));
+        assertThat(methods(compressed)).isEqualTo(Arrays.asList("f", "[previous frame repeated 9 more times]", "x",
+                "g", "h", "[previous 2 frames repeated 4 more times]", "m"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Buglife, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.buglife.crashlife.sdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentedEventStoreTest {
+    private static final long SEGMENT_BYTES = 64 * 1024;
+
+    @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        File directory = mFolder.newFolder();
+        SegmentedEventStore store = new SegmentedEventStore(directory, SEGMENT_BYTES);
+        assertThat(store.append(payload("first"), 1000)).isEqualTo(1L);
+        assertThat(store.append(payload("second"), 2000)).isEqualTo(2L);
+        store.close();
+
+        store = new SegmentedEventStore(directory, SEGMENT_BYTES);
+        assertThat(store.getSeqs()).containsExactly(1L, 2L);
+        assertThat(store.getNextSeq()).isEqualTo(3L);
+        SegmentedEventStore.Record record = store.read(2);
+        assertThat(record.timestamp).isEqualTo(2000L);
+        assertThat(new String(record.payload, "UTF-8")).isEqualTo("second");
+    }
+
+    @Test
+    public void tornTailIsCutOffAndAppendedPast() throws IOException {
+        File directory = mFolder.newFolder();
+        SegmentedEventStore store = new SegmentedEventStore(directory, SEGMENT_BYTES);
+        store.append(payload("kept"), 1000);
+        store.close();
+        File segment = directory.listFiles()[0];
+        long goodLength = segment.length();
+        // The process died partway through writing the second record: a whole header, half a payload
+        FileOutputStream output = new FileOutputStream(segment, true);
+        byte[] record = new byte[24 + 10];
+        record[3] = 20;
+        output.write(record);
+        output.close();
+
+        store = new SegmentedEventStore(directory, SEGMENT_BYTES);
+        assertThat(store.getSeqs()).containsExactly(1L);
+        assertThat(segment.length()).isEqualTo(goodLength);
+        assertThat(store.append(payload("after"), 2000)).isEqualTo(2L);
+        store.close();
+
+        store = new SegmentedEventStore(directory, SEGMENT_BYTES);
+        assertThat(store.getSeqs()).containsExactly(1L, 2L);
+        assertThat(new String(store.read(2).payload, "UTF-8")).isEqualTo("after");
+    }
+
+    @Test
+    public void segmentsAreDeletedOnceNoRecordIsLive() throws IOException {
+        File directory = mFolder.newFolder();
+        // Small enough that every record starts a segment of its own
+        SegmentedEventStore store = new SegmentedEventStore(directory, 1);
+        for (int i = 0; i < 4; i++) {
+            store.append(payload("event " + i), 1000 + i);
+        }
+        assertThat(directory.listFiles()).hasSize(4);
+
+        store.remove(2);
+        assertThat(directory.listFiles()).hasSize(3);
+        assertThat(store.read(2)).isNull();
+        store.acknowledge(3);
+        assertThat(directory.listFiles()).hasSize(1);
+        assertThat(store.getSeqs()).containsExactly(4L);
+
+        // The active segment is kept even once empty, since its name carries the next sequence id
+        store.remove(4);
+        assertThat(directory.listFiles()).hasSize(1);
+        store.close();
+        store = new SegmentedEventStore(directory, 1);
+        assertThat(store.getNextSeq()).isEqualTo(5L);
+        assertThat(store.append(payload("later"), 2000)).isEqualTo(5L);
+    }
+
+    private static byte[] payload(String value) throws IOException {
+        return value.getBytes("UTF-8");
+    }
+}